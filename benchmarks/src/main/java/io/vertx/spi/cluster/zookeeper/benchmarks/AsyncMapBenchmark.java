@@ -0,0 +1,102 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.benchmarks;
+
+import io.vertx.core.shareddata.AsyncMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.vertx.spi.cluster.zookeeper.benchmarks.ZKClusterState.await;
+
+/**
+ * get/put/putIfAbsent/replace of ZKAsyncMap, measured end to end through the cluster manager.
+ *
+ * Created by Stream.Liu
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncMapBenchmark {
+
+  @Param({"1000"})
+  int keys;
+
+  @Param({"64"})
+  int valueSize;
+
+  private AsyncMap<String, String> map;
+  private AsyncMap<String, String> absentMap;
+  private final AtomicLong absentKeys = new AtomicLong();
+  private String value;
+
+  @Setup(Level.Trial)
+  public void setUp(ZKClusterState cluster) {
+    map = await(handler -> cluster.clusterManager.getAsyncMap("bench.map", handler));
+    absentMap = await(handler -> cluster.clusterManager.getAsyncMap("bench.absentMap", handler));
+    StringBuilder sb = new StringBuilder(valueSize);
+    for (int i = 0; i < valueSize; i++) {
+      sb.append((char) ('a' + i % 26));
+    }
+    value = sb.toString();
+    for (int i = 0; i < keys; i++) {
+      String key = key(i);
+      ZKClusterState.<Void>await(handler -> map.put(key, value, handler));
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void clearAbsentMap() {
+    ZKClusterState.<Void>await(absentMap::clear);
+  }
+
+  private static String key(int i) {
+    return "key-" + i;
+  }
+
+  private String randomKey() {
+    return key(ThreadLocalRandom.current().nextInt(keys));
+  }
+
+  @Benchmark
+  public String get() {
+    String key = randomKey();
+    return await(handler -> map.get(key, handler));
+  }
+
+  @Benchmark
+  public Void put() {
+    String key = randomKey();
+    return await(handler -> map.put(key, value, handler));
+  }
+
+  @Benchmark
+  public String putIfAbsent() {
+    String key = "absent-" + absentKeys.incrementAndGet();
+    return await(handler -> absentMap.putIfAbsent(key, value, handler));
+  }
+
+  @Benchmark
+  public String replace() {
+    String key = randomKey();
+    return await(handler -> map.replace(key, value, handler));
+  }
+}
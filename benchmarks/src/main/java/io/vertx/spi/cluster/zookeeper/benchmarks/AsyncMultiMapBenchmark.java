@@ -0,0 +1,93 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.benchmarks;
+
+import io.vertx.core.net.impl.ServerID;
+import io.vertx.core.spi.cluster.AsyncMultiMap;
+import io.vertx.core.spi.cluster.ChoosableIterable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static io.vertx.spi.cluster.zookeeper.benchmarks.ZKClusterState.await;
+
+/**
+ * add/get/removeAllForValue of ZKAsyncMultiMap, shaped like the event bus subscription map:
+ * addresses as keys and server ids as values.
+ *
+ * Created by Stream.Liu
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncMultiMapBenchmark {
+
+  @Param({"100"})
+  int addresses;
+
+  @Param({"4"})
+  int servers;
+
+  private AsyncMultiMap<String, ServerID> map;
+
+  @Setup(Level.Trial)
+  public void setUp(ZKClusterState cluster) {
+    map = await(handler -> cluster.clusterManager.getAsyncMultiMap("bench.multiMap", handler));
+    for (int i = 0; i < addresses; i++) {
+      String address = address(i);
+      for (int j = 0; j < servers; j++) {
+        ServerID serverID = serverID(j);
+        ZKClusterState.<Void>await(handler -> map.add(address, serverID, handler));
+      }
+    }
+  }
+
+  private static String address(int i) {
+    return "address-" + i;
+  }
+
+  private static ServerID serverID(int i) {
+    return new ServerID(10000 + i, "127.0.0.1");
+  }
+
+  @Benchmark
+  public Void add() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String address = address(random.nextInt(addresses));
+    ServerID serverID = serverID(random.nextInt(servers));
+    return await(handler -> map.add(address, serverID, handler));
+  }
+
+  @Benchmark
+  public ChoosableIterable<ServerID> get() {
+    String address = address(ThreadLocalRandom.current().nextInt(addresses));
+    return await(handler -> map.get(address, handler));
+  }
+
+  /**
+   * Removes a server id that is not registered, so the benchmark measures the scan over every
+   * entry without shrinking the map between invocations.
+   */
+  @Benchmark
+  public Void removeAllForValue() {
+    ServerID absent = serverID(servers + ThreadLocalRandom.current().nextInt(servers));
+    return await(handler -> map.removeAllForValue(absent, handler));
+  }
+}
@@ -0,0 +1,49 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.benchmarks;
+
+import io.vertx.core.shareddata.Counter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static io.vertx.spi.cluster.zookeeper.benchmarks.ZKClusterState.await;
+
+/**
+ * incrementAndGet of a single shared ZKCounter.
+ *
+ * Created by Stream.Liu
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CounterBenchmark {
+
+  private Counter counter;
+
+  @Setup(Level.Trial)
+  public void setUp(ZKClusterState cluster) {
+    counter = await(handler -> cluster.clusterManager.getCounter("bench.counter", handler));
+  }
+
+  @Benchmark
+  public Long incrementAndGet() {
+    return await(counter::incrementAndGet);
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.benchmarks;
+
+import io.vertx.core.shareddata.Lock;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static io.vertx.spi.cluster.zookeeper.benchmarks.ZKClusterState.await;
+
+/**
+ * getLockWithTimeout followed by release, on a set of lock names so that concurrent threads mostly do not contend.
+ *
+ * Created by Stream.Liu
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LockBenchmark {
+
+  @Param({"16"})
+  int locks;
+
+  @Param({"10000"})
+  long timeout;
+
+  private ZKClusterState cluster;
+
+  @Setup(Level.Trial)
+  public void setUp(ZKClusterState cluster) {
+    this.cluster = cluster;
+  }
+
+  @Benchmark
+  public Lock getLockWithTimeout() {
+    String name = "bench.lock-" + ThreadLocalRandom.current().nextInt(locks);
+    Lock lock = await(handler -> cluster.clusterManager.getLockWithTimeout(name, timeout, handler));
+    lock.release();
+    return lock;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.benchmarks;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.spi.cluster.zookeeper.ZookeeperClusterManager;
+import org.apache.curator.RetryPolicy;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.InstanceSpec;
+import org.apache.curator.test.TestingServer;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A single clustered Vert.x node backed by an in-process zookeeper server, shared by all the threads of a trial.
+ * Same setup as MockZKCluster in the test sources.
+ *
+ * Created by Stream.Liu
+ */
+@State(Scope.Benchmark)
+public class ZKClusterState {
+
+  private static final long TIMEOUT_SECONDS = 30;
+
+  private TestingServer server;
+  private CuratorFramework curator;
+
+  ZookeeperClusterManager clusterManager;
+  Vertx vertx;
+
+  @Setup(Level.Trial)
+  public void setUpCluster() throws Exception {
+    server = new TestingServer(new InstanceSpec(null, -1, -1, -1, true, -1, -1, 120), true);
+    RetryPolicy retryPolicy = new ExponentialBackoffRetry(2000, 1, 8000);
+    curator = CuratorFrameworkFactory.builder()
+      .namespace("io.vertx")
+      .sessionTimeoutMs(10000)
+      .connectionTimeoutMs(3000)
+      .connectString(server.getConnectString())
+      .retryPolicy(retryPolicy).build();
+    curator.start();
+    curator.blockUntilConnected();
+
+    clusterManager = new ZookeeperClusterManager(curator);
+    vertx = await(handler -> Vertx.clusteredVertx(new VertxOptions().setClusterManager(clusterManager), handler));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownCluster() throws Exception {
+    try {
+      ZKClusterState.<Void>await(vertx::close);
+    } finally {
+      curator.close();
+      server.close();
+    }
+  }
+
+  /**
+   * Blocks the benchmark thread until the asynchronous operation completes, so that the measured time covers
+   * the full round trip to zookeeper and back onto the Vert.x context.
+   */
+  static <T> T await(Consumer<Handler<AsyncResult<T>>> operation) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    operation.accept(ar -> {
+      if (ar.succeeded()) {
+        future.complete(ar.result());
+      } else {
+        future.completeExceptionally(ar.cause());
+      }
+    });
+    try {
+      return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -2,11 +2,16 @@ package example;
 
 import io.vertx.core.Vertx;
 import io.vertx.core.VertxOptions;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.spi.cluster.ClusterManager;
+import io.vertx.spi.cluster.zookeeper.ValueCodec;
 import io.vertx.spi.cluster.zookeeper.ZookeeperClusterManager;
+import io.vertx.spi.cluster.zookeeper.impl.ZKAsyncMap;
 import org.apache.curator.framework.CuratorFramework;
 
+import java.util.Map;
+
 /**
  * Created by stream.
  */
@@ -56,4 +61,64 @@ public class Examples {
       }
     });
   }
+
+  public void example4() {
+    ZookeeperClusterManager mgr = new ZookeeperClusterManager();
+    mgr.registerCodec("sessions", new ValueCodec<Session>() {
+      @Override
+      public int tag() {
+        return ValueCodec.MIN_USER_TAG;
+      }
+
+      @Override
+      public Class<Session> type() {
+        return Session.class;
+      }
+
+      @Override
+      public void encode(Session session, Buffer buffer) {
+        buffer.appendLong(session.lastAccess).appendString(session.user);
+      }
+
+      @Override
+      public Session decode(Buffer buffer) {
+        return new Session(buffer.getString(8, buffer.length()), buffer.getLong(0));
+      }
+    });
+    VertxOptions options = new VertxOptions().setClusterManager(mgr);
+    Vertx.clusteredVertx(options, res -> {
+      if (res.succeeded()) {
+        Vertx vertx = res.result();
+      } else {
+        // failed!
+      }
+    });
+  }
+
+  public void example5(ZookeeperClusterManager mgr, Map<String, JsonObject> routes) {
+    mgr.<String, JsonObject>getAsyncMap("routes", res -> {
+      if (res.succeeded()) {
+        ZKAsyncMap<String, JsonObject> map = (ZKAsyncMap<String, JsonObject>) res.result();
+        map.putAll(routes, ar -> {
+          if (ar.succeeded()) {
+            ar.result().forEach((key, result) -> {
+              if (result.failed()) {
+                // failed to put this key!
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  static class Session {
+    final String user;
+    final long lastAccess;
+
+    Session(String user, long lastAccess) {
+      this.user = user;
+      this.lastAccess = lastAccess;
+    }
+  }
 }
@@ -0,0 +1,70 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper;
+
+/**
+ * Counters of the near cache of an async map since the map was created.
+ *
+ * @author Stream.Liu
+ */
+public class NearCacheStats {
+
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+  private final long invalidations;
+
+  public NearCacheStats(long hits, long misses, long evictions, long invalidations) {
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+    this.invalidations = invalidations;
+  }
+
+  /**
+   * @return the number of reads answered by the near cache
+   */
+  public long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return the number of reads that went to the server because the value was not cached, was outdated or had expired
+   */
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return the number of values dropped to stay within the size of the near cache, or because they had expired
+   */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return the number of values dropped because their key was modified or removed
+   */
+  public long getInvalidations() {
+    return invalidations;
+  }
+
+  @Override
+  public String toString() {
+    return "NearCacheStats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions +
+      ", invalidations=" + invalidations + '}';
+  }
+}
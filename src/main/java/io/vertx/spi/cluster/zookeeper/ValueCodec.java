@@ -0,0 +1,69 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Encodes the values of a cluster map into the data of a zookeeper node.
+ * <p>
+ * Every stored value starts with a one byte tag which identifies the codec that wrote it. Codecs are looked up by the
+ * exact class of the value, values without a codec fall back to {@code ClusterSerializable} or Java serialization.
+ * <p>
+ * Codecs are registered per map name with {@link ZookeeperClusterManager#registerCodec(String, ValueCodec)}, every
+ * node of the cluster must register the same codecs with the same tags.
+ *
+ * @author Stream.Liu
+ */
+public interface ValueCodec<T> {
+
+  /**
+   * First tag available to user codecs, lower tags are reserved for the built-in codecs.
+   */
+  int MIN_USER_TAG = 64;
+
+  /**
+   * Last tag available to user codecs.
+   */
+  int MAX_USER_TAG = 127;
+
+  /**
+   * @return the tag written in front of every value encoded by this codec, between {@link #MIN_USER_TAG} and
+   * {@link #MAX_USER_TAG}
+   */
+  int tag();
+
+  /**
+   * @return the class of the values handled by this codec, subclasses are not matched
+   */
+  Class<T> type();
+
+  /**
+   * Append the value to the buffer.
+   *
+   * @param value  the value, never null
+   * @param buffer the buffer to write to
+   */
+  void encode(T value, Buffer buffer);
+
+  /**
+   * Read a value written by {@link #encode(Object, Buffer)}.
+   *
+   * @param buffer the bytes written by encode, without the tag
+   * @return the value
+   */
+  T decode(Buffer buffer);
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper;
+
+/**
+ * A value of a cluster map together with the version of the zookeeper node that holds it, for optimistic concurrency:
+ * a write conditioned on the version only succeeds if the node has not been modified since the value was read.
+ *
+ * @author Stream.Liu
+ */
+public class VersionedValue<V> {
+
+  /**
+   * Version of a key that is not in the map, a write conditioned on it only succeeds if the key is still absent.
+   */
+  public static final int ABSENT = -1;
+
+  private final V value;
+  private final int version;
+
+  public VersionedValue(V value, int version) {
+    this.value = value;
+    this.version = version;
+  }
+
+  /**
+   * @return the value, null when the key is not in the map
+   */
+  public V getValue() {
+    return value;
+  }
+
+  /**
+   * @return the version of the node, {@link #ABSENT} when the key is not in the map
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  @Override
+  public String toString() {
+    return "VersionedValue{value=" + value + ", version=" + version + '}';
+  }
+}
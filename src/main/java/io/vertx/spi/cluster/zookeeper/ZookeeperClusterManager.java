@@ -30,8 +30,12 @@ import io.vertx.core.spi.cluster.AsyncMultiMap;
 import io.vertx.core.spi.cluster.ClusterManager;
 import io.vertx.core.spi.cluster.NodeListener;
 import io.vertx.spi.cluster.zookeeper.impl.AsyncMapTTLMonitor;
+import io.vertx.spi.cluster.zookeeper.impl.ClassIdRegistry;
+import io.vertx.spi.cluster.zookeeper.impl.MapRegistry;
+import io.vertx.spi.cluster.zookeeper.impl.ValueCodecs;
 import io.vertx.spi.cluster.zookeeper.impl.ZKAsyncMap;
 import io.vertx.spi.cluster.zookeeper.impl.ZKAsyncMultiMap;
+import io.vertx.spi.cluster.zookeeper.impl.ZKMapOptions;
 import io.vertx.spi.cluster.zookeeper.impl.ZKSyncMap;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
@@ -47,11 +51,13 @@ import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
 
 import java.io.*;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -74,6 +80,12 @@ public class ZookeeperClusterManager implements ClusterManager, PathChildrenCach
   private boolean customCuratorCluster;
   private RetryPolicy retryPolicy;
   private Map<String, ZKLock> locks = new ConcurrentHashMap<>();
+  private Map<String, List<ValueCodec<?>>> codecs = new ConcurrentHashMap<>();
+  private MapRegistry<ZKAsyncMap<?, ?>> asyncMaps = new MapRegistry<>();
+  private MapRegistry<ZKAsyncMultiMap<?, ?>> asyncMultiMaps = new MapRegistry<>();
+  //created with the first async map, as it registers an event bus consumer.
+  private AsyncMapTTLMonitor ttlMonitor;
+  private ClassIdRegistry classIds;
 
   private static final String DEFAULT_CONFIG_FILE = "default-zookeeper.json";
   private static final String CONFIG_FILE = "zookeeper.json";
@@ -166,6 +178,28 @@ public class ZookeeperClusterManager implements ClusterManager, PathChildrenCach
     return this.curator;
   }
 
+  /**
+   * Register a codec for the values of the map with the given name, used by async maps, async multi maps and sync maps
+   * of that name. Codecs must be registered before the map is first retrieved, and on every node of the cluster.
+   *
+   * @param mapName the map name
+   * @param codec   the codec
+   */
+  public void registerCodec(String mapName, ValueCodec<?> codec) {
+    Objects.requireNonNull(mapName, "The map name cannot be null.");
+    Objects.requireNonNull(codec, "The codec cannot be null.");
+    codecs.computeIfAbsent(mapName, name -> new CopyOnWriteArrayList<>()).add(codec);
+  }
+
+  private ValueCodecs codecs(String mapName) {
+    return new ValueCodecs(codecs.getOrDefault(mapName, Collections.emptyList()), classIds,
+      conf.getBoolean("legacyEncoding", false));
+  }
+
+  private ZKMapOptions mapOptions(String mapName) {
+    return new ZKMapOptions(conf.getJsonObject("maps", new JsonObject()).getJsonObject(mapName, new JsonObject()));
+  }
+
   @Override
   public void setVertx(Vertx vertx) {
     this.vertx = vertx;
@@ -183,18 +217,43 @@ public class ZookeeperClusterManager implements ClusterManager, PathChildrenCach
    */
   @Override
   public <K, V> void getAsyncMultiMap(String name, Handler<AsyncResult<AsyncMultiMap<K, V>>> handler) {
-    vertx.executeBlocking(event -> event.complete(new ZKAsyncMultiMap<>(vertx, curator, name)), handler);
+    vertx.executeBlocking(event -> event.complete(this.<K, V>asyncMultiMap(name)), handler);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <K, V> ZKAsyncMultiMap<K, V> asyncMultiMap(String name) {
+    //the registry holds the maps of every key and value types, the types are those of the callers of the name.
+    return (ZKAsyncMultiMap<K, V>) asyncMultiMaps.acquire(name, mapName ->
+      new ZKAsyncMultiMap<>(vertx, curator, mapName, codecs(mapName), mapOptions(mapName)));
   }
 
+  /**
+   * The instances of the async maps are shared by name, each caller holds a reference to the map and can release it
+   * with {@link ZKAsyncMap#close()}, the cache of the map is closed with the last reference.
+   */
   @Override
   public <K, V> void getAsyncMap(String name, Handler<AsyncResult<AsyncMap<K, V>>> handler) {
-    AsyncMapTTLMonitor<K, V> asyncMapTTLMonitor = AsyncMapTTLMonitor.getInstance(vertx, this);
-    vertx.executeBlocking(event -> event.complete(new ZKAsyncMap<>(vertx, curator, asyncMapTTLMonitor, name)), handler);
+    AsyncMapTTLMonitor asyncMapTTLMonitor = ttlMonitor();
+    vertx.executeBlocking(event -> event.complete(this.<K, V>asyncMap(name, asyncMapTTLMonitor)), handler);
+  }
+
+  @SuppressWarnings("unchecked")
+  private <K, V> ZKAsyncMap<K, V> asyncMap(String name, AsyncMapTTLMonitor asyncMapTTLMonitor) {
+    //the registry holds the maps of every key and value types, the types are those of the callers of the name.
+    return (ZKAsyncMap<K, V>) asyncMaps.acquire(name, mapName ->
+      new ZKAsyncMap<>(vertx, curator, asyncMapTTLMonitor, mapName, codecs(mapName), mapOptions(mapName)));
+  }
+
+  private synchronized AsyncMapTTLMonitor ttlMonitor() {
+    if (ttlMonitor == null) {
+      ttlMonitor = new AsyncMapTTLMonitor(vertx, curator);
+    }
+    return ttlMonitor;
   }
 
   @Override
   public <K, V> Map<K, V> getSyncMap(String name) {
-    return new ZKSyncMap<>(curator, name);
+    return new ZKSyncMap<>(curator, name, codecs(name));
   }
 
   @Override
@@ -248,6 +307,8 @@ public class ZookeeperClusterManager implements ClusterManager, PathChildrenCach
   }
 
   private void addLocalNodeID() throws VertxException {
+    classIds = new ClassIdRegistry(curator);
+    classIds.start();
     clusterNodes = new PathChildrenCache(curator, ZK_PATH_CLUSTER_NODE_WITHOUT_SLASH, true);
     clusterNodes.getListenable().addListener(this);
     try {
@@ -325,6 +386,15 @@ public class ZookeeperClusterManager implements ClusterManager, PathChildrenCach
         if (active) {
           active = false;
           try {
+            asyncMaps.closeAll();
+            asyncMultiMaps.closeAll();
+            if (ttlMonitor != null) {
+              ttlMonitor.stop();
+              ttlMonitor = null;
+            }
+            if (classIds != null) {
+              classIds.close();
+            }
             curator.delete().deletingChildrenIfNeeded().inBackground((client, event) -> {
               if (event.getType() == CuratorEventType.DELETE) {
                 if (customCuratorCluster) {
@@ -337,7 +407,6 @@ public class ZookeeperClusterManager implements ClusterManager, PathChildrenCach
                 }
               }
             }).forPath(ZK_PATH_CLUSTER_NODE + nodeID);
-            AsyncMapTTLMonitor.getInstance(vertx, this).stop();
           } catch (Exception e) {
             log.error(e);
             future.fail(e);
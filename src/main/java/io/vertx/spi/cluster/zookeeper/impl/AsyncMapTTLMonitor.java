@@ -1,112 +1,481 @@
 package io.vertx.spi.cluster.zookeeper.impl;
 
-import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.MessageConsumer;
-import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
-import io.vertx.core.shareddata.LocalMap;
-import io.vertx.core.spi.cluster.ClusterManager;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.NodeCache;
+import org.apache.curator.framework.recipes.leader.LeaderLatch;
+import org.apache.curator.framework.recipes.leader.LeaderLatchListener;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * As Zookeeper do not support set TTL value to zkNode, we have to handle it by application self.
- * 1. Publish a specific message to all consumers that listen ttl action.
- * 2. All Consumer could receive this message in same time, so we have to make distribution lock as delete action can only
- * be execute one time.
- * 3. Check key is exist, and delete if exist, note: we just make a timer to delete if timeout, and we also save timer if we want to cancel
- * this action in later.
- * 4. Release lock.
+ * 1. A single node, elected with a {@link LeaderLatch}, publishes the event bus address of its monitor in Zookeeper.
+ * 2. The puts with a ttl are collected and sent to that address every tick, as a single binary message of deadlines.
+ * Nothing is sent for the writes without ttl.
+ * 3. The elected node keeps the deadlines in a {@link TimingWheel}, and deletes the expired keys in multi transactions.
  * <p>
- * Still if a put without ttl happens after the put with ttl but before the timeout expires, the most recent update will be removed.
- * For this case, we should add a field to indicate that if we should stop timer in the cluster.
+ * The deadline of a value is also stored in a header of the value itself, so that readers treat an expired value as
+ * absent before it is deleted. The elected node only deletes a key whose stored deadline has passed, with a versioned
+ * delete, so that a later write without ttl does not need to cancel the deadline.
+ * <p>
+ * The keys with a deadline are recorded under {@code /ttl/keys}, spread over a fixed number of index nodes, by the node
+ * that writes them, before writing the value. The elected node sweeps the recorded keys, and only them, when it gets
+ * elected and periodically, for the deadlines it did not receive, e.g. the deadlines sent while there was no elected
+ * node, to a node that left the cluster, or not sent because the writing node left before its next tick. A key leaves
+ * the index once it is removed, or written again without ttl.
+ * <p>
+ * There is a monitor per cluster manager, with its own wheel, timers and participation in the election, so that the
+ * clustered Vert.x instances of a JVM do not share their event bus consumer or lifecycle.
  * <p>
  * Created by stream.
  */
-public class AsyncMapTTLMonitor<K, V> {
+public class AsyncMapTTLMonitor {
   private final Vertx vertx;
-  private final ClusterManager clusterManager;
-  private final Map<String, ZKAsyncMap<K, V>> keyPathAndAsyncMap = new ConcurrentHashMap<>();
+  private final CuratorFramework curator;
 
   static final String TTL_KEY_HANDLER_ADDRESS = "__VERTX_ZK_TTL_HANDLER_ADDRESS";
-  static final String TTL_KEY_BODY_KEY_PATH = "keyPath";
-  static final String TTL_KEY_BODY_TIMEOUT = "timeout";
-  static final String TTL_KEY_IS_CANCEL = "isCancel";
 
-  private static final String TTL_KEY_LOCK = "__VERTX_ZK_TTL_LOCK";
-  private static final long TTL_KEY_GET_LOCK_TIMEOUT = 1500;
-  private final LocalMap<String, Long> ttlTimer;
-  private MessageConsumer<JsonObject> consumer;
+  private static final String ZK_PATH_TTL_LEADER = "/ttl/leader";
+  //the event bus address of the elected node.
+  private static final String ZK_PATH_TTL_EXPIRER = "/ttl/expirer";
+  //the keys with a deadline, /ttl/keys/<index>/<encoded key path>.
+  private static final String ZK_PATH_TTL_KEYS = "/ttl/keys";
+  private static final int TTL_INDEX_SIZE = 64;
+  //the resolution of the deadlines.
+  private static final long TTL_TICK = 100;
+  private static final int TTL_DELETE_BATCH_SIZE = 100;
+  private static final int TTL_SWEEP_READ_SIZE = 1000;
+  private static final long TTL_SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+  private static final long TTL_READ_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+  //the deadlines collected before a tick are sent right away past this size.
+  private static final int TTL_MESSAGE_BATCH_SIZE = 1000;
+  //the deadlines kept while no node is elected.
+  private static final int TTL_MAX_PENDING = 10 * TTL_MESSAGE_BATCH_SIZE;
 
-  private volatile static AsyncMapTTLMonitor instance;
+  private final TimingWheel deadlines;
+  private final LeaderLatch leaderLatch;
+  private final NodeCache expirer;
+  private final String address = TTL_KEY_HANDLER_ADDRESS + "." + UUID.randomUUID();
+  //the deadlines to send to the elected node, by key path.
+  private Map<String, Long> pending = new LinkedHashMap<>();
+  private final long tickTimer;
+  private final long sweepTimer;
+  private MessageConsumer<Buffer> consumer;
 
   private static final Logger logger = LoggerFactory.getLogger(AsyncMapTTLMonitor.class);
 
-  @SuppressWarnings("unchecked")
-  public static <K, V> AsyncMapTTLMonitor<K, V> getInstance(Vertx vertx, ClusterManager clusterManager) {
-    if (instance == null) {
-      synchronized (AsyncMapTTLMonitor.class) {
-        if (instance == null) {
-          instance = new AsyncMapTTLMonitor<K, V>(vertx, clusterManager);
+  public AsyncMapTTLMonitor(Vertx vertx, CuratorFramework curator) {
+    this.vertx = vertx;
+    this.curator = curator;
+    this.deadlines = new TimingWheel(TTL_TICK, System.currentTimeMillis());
+    this.leaderLatch = new LeaderLatch(curator, ZK_PATH_TTL_LEADER);
+    leaderLatch.addListener(new LeaderLatchListener() {
+      @Override
+      public void isLeader() {
+        vertx.executeBlocking(future -> {
+          publishAddress();
+          future.complete();
+        }, false, null);
+        //the deadlines of the values put while there was no leader, or before all the nodes restarted.
+        sweep();
+      }
+
+      @Override
+      public void notLeader() {
+        vertx.executeBlocking(future -> {
+          withdrawAddress();
+          future.complete();
+        }, false, null);
+      }
+    });
+    this.expirer = new NodeCache(curator, ZK_PATH_TTL_EXPIRER);
+    initConsumer();
+    try {
+      expirer.start();
+      leaderLatch.start();
+    } catch (Exception e) {
+      logger.error("Failed to join the election of the ttl expirer.", e);
+    }
+    this.tickTimer = vertx.setPeriodic(TTL_TICK, id -> {
+      flush();
+      expire();
+    });
+    this.sweepTimer = vertx.setPeriodic(TTL_SWEEP_INTERVAL, id -> sweep());
+  }
+
+  private void initConsumer() {
+    this.consumer = vertx.eventBus().consumer(address, event -> scheduleAll(decode(event.body())));
+  }
+
+  /**
+   * Record that the key gets a deadline, to be called before writing its value. The requests of a session are applied
+   * in order, the key is recorded before its value exists.
+   *
+   * @param keyPath the path of the key
+   */
+  public void record(String keyPath) {
+    index(keyPath);
+  }
+
+  /**
+   * Send the deadline of a key to the elected node, with the other deadlines collected until the next tick.
+   *
+   * @param keyPath  the path of the key
+   * @param deadline the absolute deadline of the value, in milliseconds
+   */
+  public void schedule(String keyPath, long deadline) {
+    boolean full;
+    synchronized (this) {
+      pending.put(keyPath, deadline);
+      //only when reaching the size, the deadlines kept while no node is elected wait for the next tick.
+      full = pending.size() == TTL_MESSAGE_BATCH_SIZE;
+    }
+    if (full) {
+      flush();
+    }
+  }
+
+  private void flush() {
+    Map<String, Long> batch;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new LinkedHashMap<>();
+    }
+    if (leaderLatch.hasLeadership()) {
+      scheduleAll(batch);
+      return;
+    }
+    ChildData expirerData = expirer.getCurrentData();
+    if (expirerData == null || expirerData.getData() == null) {
+      keep(batch);
+      return;
+    }
+    vertx.eventBus().send(new String(expirerData.getData(), StandardCharsets.UTF_8), encode(batch));
+  }
+
+  /**
+   * Keep the deadlines until an elected node is known. Past a limit they are left to the sweep of the next elected node,
+   * which finds the expired values in Zookeeper.
+   */
+  private void keep(Map<String, Long> batch) {
+    synchronized (this) {
+      if (pending.size() + batch.size() <= TTL_MAX_PENDING) {
+        //the deadlines scheduled in the meantime are the most recent ones.
+        batch.forEach(pending::putIfAbsent);
+        return;
+      }
+    }
+    //the keys have been recorded by their writer.
+    logger.debug(String.format("No ttl expirer elected, %d deadlines left to the sweep.", batch.size()));
+  }
+
+  private void scheduleAll(Map<String, Long> batch) {
+    synchronized (deadlines) {
+      batch.forEach(deadlines::schedule);
+    }
+  }
+
+  /**
+   * @return the path of the node recording that the key has a deadline
+   */
+  public static String indexPath(String keyPath) {
+    try {
+      return ZK_PATH_TTL_KEYS + "/" + Integer.toHexString(Math.floorMod(keyPath.hashCode(), TTL_INDEX_SIZE)) + "/"
+        + URLEncoder.encode(keyPath, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void index(String keyPath) {
+    try {
+      curator.create().creatingParentsIfNeeded().inBackground((client, event) -> {
+        int rc = event.getResultCode();
+        if (rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NODEEXISTS.intValue()) {
+          logger.warn(String.format("Failed to record the ttl of the key %s.", keyPath),
+            KeeperException.create(KeeperException.Code.get(rc)));
+        }
+      }).forPath(indexPath(keyPath));
+    } catch (Exception e) {
+      logger.warn(String.format("Failed to record the ttl of the key %s.", keyPath), e);
+    }
+  }
+
+  private void unindex(String keyPath) {
+    try {
+      curator.delete().inBackground((client, event) -> {
+        int rc = event.getResultCode();
+        if (rc != KeeperException.Code.OK.intValue() && rc != KeeperException.Code.NONODE.intValue()) {
+          logger.warn(String.format("Failed to remove the ttl record of the key %s.", keyPath),
+            KeeperException.create(KeeperException.Code.get(rc)));
         }
+      }).forPath(indexPath(keyPath));
+    } catch (Exception e) {
+      logger.warn(String.format("Failed to remove the ttl record of the key %s.", keyPath), e);
+    }
+  }
+
+  /**
+   * Each deadline is written as the length of the key path, the UTF-8 bytes of the path and the deadline.
+   */
+  public static Buffer encode(Map<String, Long> batch) {
+    Buffer buffer = Buffer.buffer(batch.size() * 64);
+    batch.forEach((keyPath, deadline) -> {
+      byte[] path = keyPath.getBytes(StandardCharsets.UTF_8);
+      buffer.appendInt(path.length).appendBytes(path).appendLong(deadline);
+    });
+    return buffer;
+  }
+
+  public static Map<String, Long> decode(Buffer buffer) {
+    Map<String, Long> batch = new LinkedHashMap<>();
+    int pos = 0;
+    while (pos < buffer.length()) {
+      int length = buffer.getInt(pos);
+      String keyPath = new String(buffer.getBytes(pos + 4, pos + 4 + length), StandardCharsets.UTF_8);
+      batch.put(keyPath, buffer.getLong(pos + 4 + length));
+      pos += 4 + length + 8;
+    }
+    return batch;
+  }
+
+  /**
+   * Blocking, replaces the address of the previous elected node, whose ephemeral node can outlive its leadership until
+   * its session expires.
+   */
+  private void publishAddress() {
+    try {
+      try {
+        curator.delete().forPath(ZK_PATH_TTL_EXPIRER);
+      } catch (KeeperException.NoNodeException e) {
+        //no previous elected node, or it withdrew its address.
       }
+      curator.create().creatingParentsIfNeeded().withMode(CreateMode.EPHEMERAL)
+        .forPath(ZK_PATH_TTL_EXPIRER, address.getBytes(StandardCharsets.UTF_8));
+    } catch (Exception e) {
+      logger.error("Failed to publish the address of the ttl expirer.", e);
     }
-    return instance;
   }
 
-  private AsyncMapTTLMonitor(Vertx vertx, ClusterManager clusterManager) {
-    this.ttlTimer = vertx.sharedData().getLocalMap("__VERTX_ZK_TTL_TIMER");
-    this.vertx = vertx;
-    this.clusterManager = clusterManager;
-    initConsumer();
+  /**
+   * Blocking, removes the address of this node if it is still the published one.
+   */
+  private void withdrawAddress() {
+    try {
+      Stat stat = new Stat();
+      byte[] published = curator.getData().storingStatIn(stat).forPath(ZK_PATH_TTL_EXPIRER);
+      if (address.equals(new String(published, StandardCharsets.UTF_8))) {
+        curator.delete().withVersion(stat.getVersion()).forPath(ZK_PATH_TTL_EXPIRER);
+      }
+    } catch (KeeperException.NoNodeException | KeeperException.BadVersionException e) {
+      //replaced by the next elected node.
+    } catch (Exception e) {
+      logger.warn("Failed to withdraw the address of the ttl expirer.", e);
+    }
   }
 
-  private void initConsumer() {
-    this.consumer = vertx.eventBus().consumer(TTL_KEY_HANDLER_ADDRESS, event -> {
-        JsonObject body = event.body();
-        String keyPath = body.getString(TTL_KEY_BODY_KEY_PATH);
-        if (keyPathAndAsyncMap.get(keyPath) == null) return;
-        if (body.getBoolean(TTL_KEY_IS_CANCEL, false)) {
-          long timerID = ttlTimer.remove(body.getString(keyPath));
-          if (timerID > 0) vertx.cancelTimer(timerID);
-        } else {
-          long timerID = vertx.setTimer(body.getLong(TTL_KEY_BODY_TIMEOUT), aLong -> {
-              clusterManager.getLockWithTimeout(TTL_KEY_LOCK, TTL_KEY_GET_LOCK_TIMEOUT, lockAsyncResult -> {
-                ZKAsyncMap<K, V> zkAsyncMap = keyPathAndAsyncMap.get(keyPath);
-                if (lockAsyncResult.succeeded()) {
-                  zkAsyncMap.checkExists(keyPath)
-                    .compose(checkResult -> checkResult ? zkAsyncMap.delete(keyPath, null) : Future.succeededFuture())
-                    .setHandler(deleteResult -> {
-                      if (deleteResult.succeeded()) {
-                        lockAsyncResult.result().release();
-                        logger.debug(String.format("The key %s have arrived time, and have been deleted.", keyPath));
-                      } else {
-                        logger.error(String.format("Delete expire key %s failed.", keyPath), deleteResult.cause());
-                      }
-                    });
-                } else {
-                  logger.error("get TTL lock failed.", lockAsyncResult.cause());
-                }
-              });
-            }
-          );
-          ttlTimer.put(keyPath, timerID);
+  private void expire() {
+    List<String> expired;
+    synchronized (deadlines) {
+      expired = deadlines.advance(System.currentTimeMillis());
+    }
+    if (expired.isEmpty() || !leaderLatch.hasLeadership()) {
+      return;
+    }
+    vertx.executeBlocking(future -> {
+      try {
+        long now = System.currentTimeMillis();
+        for (int from = 0; from < expired.size(); from += TTL_DELETE_BATCH_SIZE) {
+          List<String> paths = expired.subList(from, Math.min(from + TTL_DELETE_BATCH_SIZE, expired.size()));
+          deleteExpired(paths, read(paths), now);
+        }
+        future.complete();
+      } catch (Exception e) {
+        future.fail(e);
+      }
+    }, false, result -> {
+      if (result.failed()) {
+        logger.error("Delete expire keys failed.", result.cause());
+      }
+    });
+  }
+
+  /**
+   * Delete the expired values of the recorded keys, and schedule the deadlines of the others.
+   */
+  private void sweep() {
+    if (!leaderLatch.hasLeadership()) {
+      return;
+    }
+    vertx.executeBlocking(future -> {
+      try {
+        for (String index : children(ZK_PATH_TTL_KEYS)) {
+          sweep(ZK_PATH_TTL_KEYS + "/" + index);
+        }
+        future.complete();
+      } catch (Exception e) {
+        future.fail(e);
+      }
+    }, false, result -> {
+      if (result.failed()) {
+        logger.error("Sweep expire keys failed.", result.cause());
+      }
+    });
+  }
+
+  private void sweep(String indexPath) throws Exception {
+    List<String> children = children(indexPath);
+    for (int from = 0; from < children.size(); from += TTL_SWEEP_READ_SIZE) {
+      List<String> paths = new ArrayList<>();
+      for (String child : children.subList(from, Math.min(from + TTL_SWEEP_READ_SIZE, children.size()))) {
+        paths.add(URLDecoder.decode(child, "UTF-8"));
+      }
+      deleteExpired(paths, read(paths), System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Delete the nodes whose value has expired, and schedule again the ones that got a later deadline. The keys removed,
+   * or written again without ttl, leave the index.
+   *
+   * @param paths the paths of the keys
+   * @param nodes the nodes of the keys in the same order, null for a key that does not exist
+   */
+  private void deleteExpired(List<String> paths, List<ChildData> nodes, long now) {
+    List<ChildData> expired = new ArrayList<>();
+    List<String> unindexed = new ArrayList<>();
+    for (int i = 0; i < paths.size(); i++) {
+      ChildData node = nodes.get(i);
+      long deadline = node != null ? ValueCodecs.deadlineOf(node.getData()) : ValueCodecs.NO_DEADLINE;
+      if (deadline <= now) {
+        expired.add(node);
+      } else if (deadline != ValueCodecs.NO_DEADLINE) {
+        synchronized (deadlines) {
+          deadlines.schedule(node.getPath(), deadline);
         }
+      } else {
+        unindexed.add(paths.get(i));
       }
-    );
+    }
+    for (int from = 0; from < expired.size(); from += TTL_DELETE_BATCH_SIZE) {
+      unindexed.addAll(delete(expired.subList(from, Math.min(from + TTL_DELETE_BATCH_SIZE, expired.size()))));
+    }
+    unindexed.forEach(this::unindex);
   }
 
-  void addAsyncMapWithPath(String keyPath, ZKAsyncMap<K, V> asyncMap) {
-    keyPathAndAsyncMap.putIfAbsent(keyPath, asyncMap);
+  /**
+   * Delete the nodes in a multi transaction, one by one when it fails so that the nodes already removed or modified do
+   * not prevent the others from being deleted. Each node is only deleted if it still has the version that was read.
+   *
+   * @return the paths of the nodes that are gone, the others were modified in the meantime
+   */
+  private List<String> delete(List<ChildData> nodes) {
+    List<String> deleted = new ArrayList<>(nodes.size());
+    try {
+      CuratorTransaction transaction = curator.inTransaction();
+      for (ChildData node : nodes) {
+        transaction = transaction.delete().withVersion(node.getStat().getVersion()).forPath(node.getPath()).and();
+      }
+      ((CuratorTransactionFinal) transaction).commit();
+      logger.debug(String.format("%d keys have arrived time, and have been deleted.", nodes.size()));
+      nodes.forEach(node -> deleted.add(node.getPath()));
+      return deleted;
+    } catch (Exception e) {
+      //at least one key has been removed or modified in the meantime.
+    }
+    for (ChildData node : nodes) {
+      try {
+        curator.delete().withVersion(node.getStat().getVersion()).forPath(node.getPath());
+        logger.debug(String.format("The key %s have arrived time, and have been deleted.", node.getPath()));
+        deleted.add(node.getPath());
+      } catch (KeeperException.NoNodeException e) {
+        //removed in the meantime.
+        deleted.add(node.getPath());
+      } catch (KeeperException.BadVersionException e) {
+        //modified in the meantime, the next sweep checks its new deadline.
+      } catch (Exception e) {
+        logger.error(String.format("Delete expire key %s failed.", node.getPath()), e);
+      }
+    }
+    return deleted;
   }
 
+  /**
+   * Read the nodes with pipelined requests.
+   *
+   * @return the nodes in the same order, null for a node that does not exist
+   */
+  private List<ChildData> read(List<String> paths) throws Exception {
+    ChildData[] nodes = new ChildData[paths.size()];
+    CountDownLatch latch = new CountDownLatch(paths.size());
+    for (int i = 0; i < paths.size(); i++) {
+      int index = i;
+      String path = paths.get(i);
+      curator.getData().inBackground((client, event) -> {
+        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+          nodes[index] = new ChildData(path, event.getStat(), event.getData());
+        }
+        latch.countDown();
+      }).forPath(path);
+    }
+    if (!latch.await(TTL_READ_TIMEOUT, TimeUnit.MILLISECONDS)) {
+      throw new IllegalStateException("Timed out reading the expiring keys.");
+    }
+    return Arrays.asList(nodes);
+  }
+
+  private List<String> children(String path) throws Exception {
+    try {
+      return curator.getChildren().forPath(path);
+    } catch (KeeperException.NoNodeException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Blocking, leaves the election and sends the pending deadlines.
+   */
   public void stop() {
+    vertx.cancelTimer(tickTimer);
+    vertx.cancelTimer(sweepTimer);
+    flush();
     consumer.unregister();
-    keyPathAndAsyncMap.clear();
-    instance = null;
+    if (leaderLatch.hasLeadership()) {
+      withdrawAddress();
+    }
+    try {
+      leaderLatch.close();
+      expirer.close();
+    } catch (IOException | IllegalStateException e) {
+      logger.warn("Failed to leave the election of the ttl expirer.", e);
+    }
   }
 
 }
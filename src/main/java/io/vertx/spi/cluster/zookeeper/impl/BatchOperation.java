@@ -0,0 +1,57 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+/**
+ * A write of a batch, committed with the other writes of the batch in a zookeeper multi transaction.
+ * <p>
+ * Created by Stream.Liu
+ */
+class BatchOperation {
+
+  enum Type {
+    CREATE, SET_DATA, DELETE
+  }
+
+  final Type type;
+  final String path;
+  final byte[] data;
+
+  private BatchOperation(Type type, String path, byte[] data) {
+    this.type = type;
+    this.path = path;
+    this.data = data;
+  }
+
+  static BatchOperation create(String path, byte[] data) {
+    return new BatchOperation(Type.CREATE, path, data);
+  }
+
+  static BatchOperation setData(String path, byte[] data) {
+    return new BatchOperation(Type.SET_DATA, path, data);
+  }
+
+  static BatchOperation delete(String path) {
+    return new BatchOperation(Type.DELETE, path, null);
+  }
+
+  /**
+   * @return an estimate of the size of the operation in the transaction request
+   */
+  int size() {
+    return path.length() + (data != null ? data.length : 0);
+  }
+}
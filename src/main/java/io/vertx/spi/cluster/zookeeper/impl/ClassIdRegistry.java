@@ -0,0 +1,231 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.VertxException;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cluster wide dictionary of the {@code ClusterSerializable} class names stored in the maps, so that values carry a
+ * small integer id instead of the fully qualified class name.
+ * <p>
+ * Ids are allocated with a sequential node {@code /classIds/ids/id-<seq>} whose data is the class name, and the id of a
+ * class is published in {@code /classIds/names/<className>}. When two nodes register the same class at the same time
+ * the first published id wins, the other one stays a valid alias since it resolves to the same name.
+ * <p>
+ * Registration happens in the background: until the id of a class is known locally, its values are written with the
+ * class name. Once started, the registry keeps all the ids of the cluster in memory, watching the ids allocated by the
+ * other nodes, so that decoding never waits for zookeeper. An id allocated by another node that has not reached the
+ * registry yet makes decoding fail with an {@link UnknownClassIdException}, the maps then read its name in the
+ * background and decode the value again.
+ * <p>
+ * Created by Stream.Liu
+ */
+public class ClassIdRegistry {
+
+  private static final Logger log = LoggerFactory.getLogger(ClassIdRegistry.class);
+
+  private static final String ZK_PATH_IDS = "/classIds/ids";
+  private static final String ZK_PATH_CLASS_IDS = ZK_PATH_IDS + "/id-";
+  private static final String ZK_PATH_CLASS_NAMES = "/classIds/names/";
+
+  private final CuratorFramework curator;
+  private final Map<String, Integer> idsByName = new ConcurrentHashMap<>();
+  private final Map<Integer, String> namesById = new ConcurrentHashMap<>();
+  private final Map<String, Boolean> registering = new ConcurrentHashMap<>();
+  private final PathChildrenCache ids;
+
+  public ClassIdRegistry(CuratorFramework curator) {
+    this.curator = curator;
+    this.ids = new PathChildrenCache(curator, ZK_PATH_IDS, true);
+    ids.getListenable().addListener((client, event) -> {
+      switch (event.getType()) {
+        case CHILD_ADDED:
+        case CHILD_UPDATED:
+          known(event.getData());
+          break;
+        default:
+      }
+    });
+  }
+
+  /**
+   * Load the ids of the cluster and watch the ones allocated afterwards, blocking until the ids are loaded.
+   */
+  public void start() {
+    try {
+      ids.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+    } catch (Exception e) {
+      throw new VertxException(e);
+    }
+    //the initial cache is built synchronously, no event is sent for the ids it holds.
+    ids.getCurrentData().forEach(this::known);
+  }
+
+  public void close() {
+    try {
+      ids.close();
+    } catch (IOException e) {
+      throw new VertxException(e);
+    }
+  }
+
+  private void known(ChildData childData) {
+    if (childData.getData() != null) {
+      namesById.putIfAbsent(idOf(childData.getPath()), new String(childData.getData(), StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * @return the id of the class, or -1 if it is not known yet, in which case it gets registered in the background
+   */
+  int idOf(Class<?> clazz) {
+    String className = clazz.getName();
+    Integer id = idsByName.get(className);
+    if (id != null) {
+      return id;
+    }
+    if (registering.putIfAbsent(className, Boolean.TRUE) == null) {
+      lookup(className);
+    }
+    return -1;
+  }
+
+  /**
+   * @return the class name registered with the id
+   * @throws UnknownClassIdException when the id is not known locally yet, see {@link #resolve(int, Handler)}
+   */
+  String nameOf(int id) {
+    String className = namesById.get(id);
+    if (className == null) {
+      throw new UnknownClassIdException(id);
+    }
+    return className;
+  }
+
+  /**
+   * Read the class name of the id from zookeeper in the background, the handler is called on a thread of the client.
+   */
+  void resolve(int id, Handler<AsyncResult<Void>> handler) {
+    try {
+      curator.getData().inBackground((client, event) -> {
+        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+          namesById.putIfAbsent(id, new String(event.getData(), StandardCharsets.UTF_8));
+          handler.handle(Future.succeededFuture());
+        } else {
+          handler.handle(Future.failedFuture(new VertxException("Unknown class id " + id,
+            KeeperException.create(KeeperException.Code.get(event.getResultCode()), idPath(id)))));
+        }
+      }).forPath(idPath(id));
+    } catch (Exception e) {
+      handler.handle(Future.failedFuture(e));
+    }
+  }
+
+  /**
+   * Read the class name of the id from zookeeper, blocking. Only for the callers that block on zookeeper anyway.
+   */
+  void load(int id) {
+    try {
+      namesById.putIfAbsent(id, new String(curator.getData().forPath(idPath(id)), StandardCharsets.UTF_8));
+    } catch (Exception e) {
+      throw new VertxException("Unknown class id " + id, e);
+    }
+  }
+
+  private void lookup(String className) {
+    try {
+      curator.getData().inBackground((client, event) -> {
+        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+          registered(className, Integer.parseInt(new String(event.getData(), StandardCharsets.UTF_8)));
+        } else if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+          allocate(className);
+        } else {
+          failed(className, KeeperException.create(KeeperException.Code.get(event.getResultCode())));
+        }
+      }).forPath(ZK_PATH_CLASS_NAMES + className);
+    } catch (Exception e) {
+      failed(className, e);
+    }
+  }
+
+  private void allocate(String className) {
+    try {
+      curator.create().creatingParentsIfNeeded().withMode(CreateMode.PERSISTENT_SEQUENTIAL).inBackground((client, event) -> {
+        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+          int id = idOf(event.getName());
+          namesById.put(id, className);
+          publish(className, id);
+        } else {
+          failed(className, KeeperException.create(KeeperException.Code.get(event.getResultCode())));
+        }
+      }).forPath(ZK_PATH_CLASS_IDS, className.getBytes(StandardCharsets.UTF_8));
+    } catch (Exception e) {
+      failed(className, e);
+    }
+  }
+
+  private void publish(String className, int id) {
+    try {
+      curator.create().creatingParentsIfNeeded().inBackground((client, event) -> {
+        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+          registered(className, id);
+        } else if (event.getResultCode() == KeeperException.Code.NODEEXISTS.intValue()) {
+          //another node published an id for this class first, use that one.
+          lookup(className);
+        } else {
+          failed(className, KeeperException.create(KeeperException.Code.get(event.getResultCode())));
+        }
+      }).forPath(ZK_PATH_CLASS_NAMES + className, Integer.toString(id).getBytes(StandardCharsets.UTF_8));
+    } catch (Exception e) {
+      failed(className, e);
+    }
+  }
+
+  private void registered(String className, int id) {
+    namesById.put(id, className);
+    idsByName.put(className, id);
+    registering.remove(className);
+  }
+
+  private void failed(String className, Exception e) {
+    log.warn("Failed to register class id for " + className + ", values keep using the class name.", e);
+    registering.remove(className);
+  }
+
+  private static int idOf(String path) {
+    return Integer.parseInt(ZKPaths.getNodeFromPath(path).substring("id-".length()));
+  }
+
+  private static String idPath(int id) {
+    return String.format("%s%010d", ZK_PATH_CLASS_IDS, id);
+  }
+}
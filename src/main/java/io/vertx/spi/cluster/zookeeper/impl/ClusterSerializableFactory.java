@@ -0,0 +1,89 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import com.google.common.collect.MapMaker;
+import io.vertx.core.shareddata.impl.ClusterSerializable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Creates the {@link ClusterSerializable} instances that values are decoded into.
+ * <p>
+ * Resolved classes are cached per class loader and the no-arg constructor of each class is looked up once and kept as
+ * a method handle, so decoding does not go through the class loader and reflection for every value.
+ * Class loaders and classes are only weakly referenced, they can still be unloaded. The caches are concurrent maps, a
+ * decode takes no lock once the class is resolved.
+ * <p>
+ * Created by Stream.Liu
+ */
+class ClusterSerializableFactory {
+
+  private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+  //weak keys are compared by identity.
+  private static final ConcurrentMap<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>> classes =
+    new MapMaker().weakKeys().makeMap();
+
+  private static final ClassValue<MethodHandle> constructors = new ClassValue<MethodHandle>() {
+    @Override
+    protected MethodHandle computeValue(Class<?> type) {
+      try {
+        Constructor<?> constructor = type.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        return MethodHandles.lookup().unreflectConstructor(constructor).asType(CONSTRUCTOR_TYPE);
+      } catch (Exception e) {
+        throw new IllegalStateException("Failed to load class " + e.getMessage(), e);
+      }
+    }
+  };
+
+  private ClusterSerializableFactory() {
+  }
+
+  static ClusterSerializable newInstance(String className) throws ClassNotFoundException {
+    return newInstance(resolve(className));
+  }
+
+  static ClusterSerializable newInstance(Class<?> clazz) {
+    try {
+      return (ClusterSerializable) (Object) constructors.get(clazz).invokeExact();
+    } catch (Throwable t) {
+      throw new IllegalStateException("Failed to load class " + t.getMessage(), t);
+    }
+  }
+
+  static Class<?> resolve(String className) throws ClassNotFoundException {
+    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+    if (classLoader == null) {
+      classLoader = ClusterSerializableFactory.class.getClassLoader();
+    }
+    ConcurrentMap<String, WeakReference<Class<?>>> loaded = classes.computeIfAbsent(classLoader, cl -> new ConcurrentHashMap<>());
+    WeakReference<Class<?>> reference = loaded.get(className);
+    Class<?> clazz = reference != null ? reference.get() : null;
+    if (clazz == null) {
+      clazz = classLoader.loadClass(className);
+      loaded.put(className, new WeakReference<>(clazz));
+    }
+    return clazz;
+  }
+}
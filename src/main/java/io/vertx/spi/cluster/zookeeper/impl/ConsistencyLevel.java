@@ -0,0 +1,47 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import java.util.Locale;
+
+/**
+ * How fresh the reads of a cluster map have to be, configured per map with the {@code consistency} option.
+ * <p>
+ * Created by Stream.Liu
+ */
+public enum ConsistencyLevel {
+
+  /**
+   * Every existence check syncs with the leader before reading, reads observe all the writes completed before them.
+   */
+  LINEARIZABLE,
+
+  /**
+   * Existence checks read from the server the session is connected to without syncing, reads observe the writes of
+   * this node in order but can lag behind the writes of other nodes.
+   */
+  SESSION_SEQUENTIAL,
+
+  /**
+   * Existence checks are answered by the local cache of the map when it is initialized and connected, falling back to
+   * {@link #SESSION_SEQUENTIAL} otherwise.
+   */
+  CACHED;
+
+  static ConsistencyLevel fromConfig(String value) {
+    return valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+  }
+}
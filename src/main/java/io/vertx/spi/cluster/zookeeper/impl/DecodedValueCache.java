@@ -0,0 +1,85 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decoded values of a map keyed by node path, each one tagged with the {@code mzxid} of the node it was decoded from.
+ * A value is only returned for the same {@code mzxid}, so a modified node is never answered with an old value even
+ * before the cache listener of the map invalidates it.
+ * <p>
+ * The decoded instances are shared between all the readers of the map, only values that are never modified are kept:
+ * strings and boxed primitives always, any value when the map is configured with {@code cacheDecodedValues}.
+ * <p>
+ * The cache is only bounded by the cache of the nodes it decodes, a map that does not keep the data of all its nodes
+ * must disable it.
+ * <p>
+ * Created by Stream.Liu
+ */
+class DecodedValueCache {
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final boolean enabled;
+  private final boolean cacheAll;
+
+  /**
+   * @param enabled  whether values are kept at all
+   * @param cacheAll whether every value is kept, and not only the immutable ones
+   */
+  DecodedValueCache(boolean enabled, boolean cacheAll) {
+    this.enabled = enabled;
+    this.cacheAll = cacheAll;
+  }
+
+  /**
+   * @return the entry of the path decoded from the given node version, or null
+   */
+  Entry get(String path, long mzxid) {
+    Entry entry = entries.get(path);
+    return entry != null && entry.mzxid == mzxid ? entry : null;
+  }
+
+  void put(String path, long mzxid, Object value) {
+    if (enabled && (value == null || cacheAll || isImmutable(value))) {
+      entries.merge(path, new Entry(mzxid, value), (current, update) -> update.mzxid > current.mzxid ? update : current);
+    }
+  }
+
+  void invalidate(String path) {
+    entries.remove(path);
+  }
+
+  void clear() {
+    entries.clear();
+  }
+
+  private static boolean isImmutable(Object value) {
+    return value instanceof String || value instanceof Number && value.getClass().getName().startsWith("java.lang.")
+      || value instanceof Boolean || value instanceof Character;
+  }
+
+  static final class Entry {
+    final long mzxid;
+    final Object value;
+
+    private Entry(long mzxid, Object value) {
+      this.mzxid = mzxid;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import java.util.Locale;
+
+/**
+ * Which value the near cache of an async map drops first when it is full, configured per map with the
+ * {@code valueCacheEviction} option.
+ * <p>
+ * Created by Stream.Liu
+ */
+public enum EvictionPolicy {
+
+  /**
+   * The least recently read value is dropped first.
+   */
+  LRU,
+
+  /**
+   * The least frequently read value is dropped first, the least recently cached one among values read as often.
+   */
+  LFU;
+
+  static EvictionPolicy fromConfig(String value) {
+    return valueOf(value.toUpperCase(Locale.ROOT));
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Map instances shared by name, so that all the users of a map share a single cache and a single set of watches. The
+ * instances are reference counted: every {@link #acquire(String, Function)} takes a reference that is released by a
+ * {@link ZKMap#close()} of the map, the caches of the map are closed with the last reference.
+ * <p>
+ * Created by Stream.Liu
+ */
+public class MapRegistry<M extends ZKMap<?, ?>> {
+
+  private final Map<String, Shared<M>> maps = new ConcurrentHashMap<>();
+
+  /**
+   * @return the map of the name, created by the factory when it is not in use yet
+   */
+  public M acquire(String name, Function<String, M> factory) {
+    Shared<M> shared = retain(name);
+    if (shared != null) {
+      return shared.map;
+    }
+    //built outside of the registry map, the factory starts caches and waits for Zookeeper.
+    M map = factory.apply(name);
+    Shared<M> created = new Shared<>(map);
+    created.references = 1;
+    map.sharedBy(() -> release(name, created));
+    while (maps.putIfAbsent(name, created) != null) {
+      //another caller created the map in the meantime, unless its instance was released since.
+      shared = retain(name);
+      if (shared != null) {
+        map.closeCaches();
+        return shared.map;
+      }
+    }
+    return map;
+  }
+
+  private Shared<M> retain(String name) {
+    return maps.computeIfPresent(name, (key, shared) -> {
+      shared.references++;
+      return shared;
+    });
+  }
+
+  /**
+   * Close all the maps, whatever their number of references.
+   */
+  public void closeAll() {
+    for (String name : maps.keySet()) {
+      Shared<M> shared = maps.remove(name);
+      if (shared != null) {
+        shared.map.closeCaches();
+      }
+    }
+  }
+
+  private void release(String name, Shared<M> released) {
+    List<M> closed = new ArrayList<>(1);
+    maps.computeIfPresent(name, (key, shared) -> {
+      //a map closed more times than it was acquired must not release a newer instance of the same name.
+      if (shared != released || --shared.references > 0) {
+        return shared;
+      }
+      closed.add(shared.map);
+      return null;
+    });
+    //the caches are closed out of the registry map, like they are created.
+    closed.forEach(map -> map.closeCaches());
+  }
+
+  private static final class Shared<M> {
+    final M map;
+    int references;
+
+    private Shared(M map) {
+      this.map = map;
+    }
+  }
+}
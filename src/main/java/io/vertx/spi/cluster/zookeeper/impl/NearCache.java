@@ -0,0 +1,151 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import io.vertx.spi.cluster.zookeeper.NearCacheStats;
+import org.apache.curator.framework.recipes.cache.ChildData;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Near cache of the nodes read by a map whose cache holds no data, keyed by node path. A node is only returned for the
+ * {@code mzxid} known by the cache of the map, so that a modified node is read again from the server, and the cache
+ * listener of the map invalidates the nodes that are modified or removed.
+ * <p>
+ * The near cache is bounded by a number of nodes and/or a number of bytes, dropping the nodes in the order of its
+ * {@link EvictionPolicy}, and the nodes can expire a given time after they were cached.
+ * <p>
+ * Created by Stream.Liu
+ */
+class NearCache {
+
+  private final int maxEntries;
+  private final long maxBytes;
+  private final long ttl;
+  private final EvictionPolicy eviction;
+  //in access order for LRU, in insertion order for LFU.
+  private final LinkedHashMap<String, Entry> entries;
+  //paths by read count, each set in insertion order, only for LFU.
+  private final TreeMap<Long, LinkedHashSet<String>> byFrequency = new TreeMap<>();
+  private long bytes;
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long invalidations;
+
+  NearCache(ZKMapOptions options) {
+    this.maxEntries = options.getValueCacheSize();
+    this.maxBytes = options.getValueCacheMaxBytes();
+    this.ttl = TimeUnit.MILLISECONDS.toNanos(options.getValueCacheTtl());
+    this.eviction = options.getValueCacheEviction();
+    this.entries = new LinkedHashMap<>(16, 0.75f, eviction == EvictionPolicy.LRU);
+  }
+
+  /**
+   * @return the node of the path read at the given version, or null
+   */
+  synchronized ChildData get(String path, long mzxid) {
+    Entry entry = entries.get(path);
+    if (entry == null || entry.node.getStat().getMzxid() != mzxid) {
+      misses++;
+      return null;
+    }
+    if (ttl > 0 && System.nanoTime() - entry.cachedAt > ttl) {
+      remove(path);
+      evictions++;
+      misses++;
+      return null;
+    }
+    if (eviction == EvictionPolicy.LFU) {
+      removeFrequency(path, entry.frequency++);
+      byFrequency.computeIfAbsent(entry.frequency, frequency -> new LinkedHashSet<>()).add(path);
+    }
+    hits++;
+    return entry.node;
+  }
+
+  synchronized void put(ChildData node) {
+    String path = node.getPath();
+    Entry current = entries.get(path);
+    if (current != null) {
+      if (current.node.getStat().getMzxid() >= node.getStat().getMzxid()) {
+        return;
+      }
+      remove(path);
+    }
+    Entry entry = new Entry(node);
+    entries.put(path, entry);
+    bytes += entry.bytes;
+    if (eviction == EvictionPolicy.LFU) {
+      byFrequency.computeIfAbsent(entry.frequency, frequency -> new LinkedHashSet<>()).add(path);
+    }
+    while (!entries.isEmpty() && (maxEntries > 0 && entries.size() > maxEntries || maxBytes > 0 && bytes > maxBytes)) {
+      remove(victim());
+      evictions++;
+    }
+  }
+
+  synchronized void invalidate(String path) {
+    if (remove(path) != null) {
+      invalidations++;
+    }
+  }
+
+  synchronized NearCacheStats stats() {
+    return new NearCacheStats(hits, misses, evictions, invalidations);
+  }
+
+  private String victim() {
+    Iterator<String> paths = eviction == EvictionPolicy.LFU ?
+      byFrequency.firstEntry().getValue().iterator() : entries.keySet().iterator();
+    return paths.next();
+  }
+
+  private Entry remove(String path) {
+    Entry entry = entries.remove(path);
+    if (entry != null) {
+      bytes -= entry.bytes;
+      if (eviction == EvictionPolicy.LFU) {
+        removeFrequency(path, entry.frequency);
+      }
+    }
+    return entry;
+  }
+
+  private void removeFrequency(String path, long frequency) {
+    LinkedHashSet<String> paths = byFrequency.get(frequency);
+    paths.remove(path);
+    if (paths.isEmpty()) {
+      byFrequency.remove(frequency);
+    }
+  }
+
+  private static final class Entry {
+    final ChildData node;
+    final int bytes;
+    final long cachedAt = System.nanoTime();
+    long frequency = 1;
+
+    private Entry(ChildData node) {
+      this.node = node;
+      this.bytes = node.getPath().length() + (node.getData() != null ? node.getData().length : 0);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+
+/**
+ * Detects the node modes of Zookeeper 3.5 that both the client library on the classpath and the ensemble support.
+ * <p>
+ * Created by Stream.Liu
+ */
+final class ServerFeatures {
+
+  private static final Logger log = LoggerFactory.getLogger(ServerFeatures.class);
+
+  private static final String CONTAINER_PROBE_PATH = "/containerProbe";
+
+  private ServerFeatures() {
+  }
+
+  /**
+   * Blocking, creates and deletes a container node to check that the ensemble supports them.
+   *
+   * @return whether the parents created with {@code creatingParentContainersIfNeeded} are container nodes
+   */
+  static boolean supportsContainers(CuratorFramework curator) {
+    //curator resolves the container mode by reflection and uses persistent nodes with a client older than 3.5.
+    if (ZKPaths.getContainerCreateMode() == CreateMode.PERSISTENT) {
+      log.info("The Zookeeper client does not support container nodes, empty keys are removed by the cluster manager.");
+      return false;
+    }
+    try {
+      curator.create().withMode(ZKPaths.getContainerCreateMode()).forPath(CONTAINER_PROBE_PATH);
+      curator.delete().forPath(CONTAINER_PROBE_PATH);
+    } catch (KeeperException.NodeExistsException | KeeperException.NoNodeException e) {
+      //probed by another node at the same time.
+    } catch (Exception e) {
+      log.info("The Zookeeper ensemble does not support container nodes, empty keys are removed by the cluster manager.", e);
+      return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hierarchical timing wheel of key deadlines. Level 0 has one slot per tick, every slot of the next level spans a full
+ * turn of the level below, and the entries of a slot are moved down a level when the wheel reaches it. Scheduling,
+ * cancelling and expiring a key is O(1) whatever the number of keys, deadlines further than the last level wait in
+ * its slots until they get close enough.
+ * <p>
+ * A key has a single deadline, scheduling it again replaces the previous deadline. Replaced and cancelled deadlines stay
+ * in their slot until the wheel reaches it and are then dropped.
+ * <p>
+ * The wheel is not thread safe.
+ * <p>
+ * Created by Stream.Liu
+ */
+public class TimingWheel {
+
+  private static final int WHEEL_SIZE = 64;
+  private static final int LEVELS = 4;
+
+  private final long tick;
+  private final List<List<List<Entry>>> slots;
+  private final Map<String, Long> deadlines = new HashMap<>();
+  private final List<Entry> due = new ArrayList<>();
+  private long currentTick;
+
+  /**
+   * @param tick the duration of a tick in milliseconds, deadlines expire at most that late
+   * @param now  the current time in milliseconds
+   */
+  public TimingWheel(long tick, long now) {
+    this.tick = tick;
+    this.currentTick = now / tick;
+    this.slots = new ArrayList<>(LEVELS);
+    for (int level = 0; level < LEVELS; level++) {
+      List<List<Entry>> wheel = new ArrayList<>(WHEEL_SIZE);
+      for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+        wheel.add(new ArrayList<>());
+      }
+      slots.add(wheel);
+    }
+  }
+
+  /**
+   * Schedule the key to expire at the deadline, in milliseconds, replacing its previous deadline.
+   */
+  public void schedule(String key, long deadline) {
+    deadlines.put(key, deadline);
+    insert(new Entry(key, deadline));
+  }
+
+  /**
+   * @return whether the key has a deadline
+   */
+  public boolean isScheduled(String key) {
+    return deadlines.containsKey(key);
+  }
+
+  public void cancel(String key) {
+    deadlines.remove(key);
+  }
+
+  /**
+   * @return the number of keys with a deadline
+   */
+  public int size() {
+    return deadlines.size();
+  }
+
+  /**
+   * Move the wheel to the current time.
+   *
+   * @param now the current time in milliseconds
+   * @return the keys whose deadline has passed, they are no longer scheduled
+   */
+  public List<String> advance(long now) {
+    List<String> expired = new ArrayList<>();
+    expire(due, expired);
+    due.clear();
+    long targetTick = now / tick;
+    while (currentTick < targetTick) {
+      currentTick++;
+      //the upper levels first, their entries can land in the slots of the lower levels reached at this tick.
+      for (int level = LEVELS - 1; level > 0; level--) {
+        long span = span(level);
+        if (currentTick % span == 0) {
+          for (Entry entry : takeSlot(level, currentTick / span)) {
+            if (isScheduled(entry)) {
+              insert(entry);
+            }
+          }
+        }
+      }
+      expire(takeSlot(0, currentTick), expired);
+      expire(due, expired);
+      due.clear();
+    }
+    return expired;
+  }
+
+  private List<Entry> takeSlot(int level, long index) {
+    List<Entry> slot = slots.get(level).get((int) (index % WHEEL_SIZE));
+    List<Entry> entries = new ArrayList<>(slot);
+    slot.clear();
+    return entries;
+  }
+
+  private static long span(int level) {
+    long span = 1;
+    for (int i = 0; i < level; i++) {
+      span *= WHEEL_SIZE;
+    }
+    return span;
+  }
+
+  private void expire(List<Entry> entries, List<String> expired) {
+    for (Entry entry : entries) {
+      if (isScheduled(entry)) {
+        deadlines.remove(entry.key);
+        expired.add(entry.key);
+      }
+    }
+  }
+
+  private boolean isScheduled(Entry entry) {
+    Long deadline = deadlines.get(entry.key);
+    return deadline != null && deadline == entry.deadline;
+  }
+
+  private void insert(Entry entry) {
+    //the first tick at or after the deadline.
+    long expiryTick = (entry.deadline + tick - 1) / tick;
+    if (expiryTick <= currentTick) {
+      due.add(entry);
+      return;
+    }
+    for (int level = 0; level < LEVELS; level++) {
+      long span = span(level);
+      if (expiryTick / span - currentTick / span < WHEEL_SIZE || level == LEVELS - 1) {
+        slots.get(level).get((int) ((expiryTick / span) % WHEEL_SIZE)).add(entry);
+        return;
+      }
+    }
+  }
+
+  private static final class Entry {
+    final String key;
+    final long deadline;
+
+    private Entry(String key, long deadline) {
+      this.key = key;
+      this.deadline = deadline;
+    }
+  }
+}
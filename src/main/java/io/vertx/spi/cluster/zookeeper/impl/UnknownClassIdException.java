@@ -0,0 +1,39 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import io.vertx.core.VertxException;
+
+/**
+ * Thrown when decoding a value whose class id is not known locally yet, its name has to be read from zookeeper first.
+ * <p>
+ * Created by Stream.Liu
+ */
+class UnknownClassIdException extends VertxException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int classId;
+
+  UnknownClassIdException(int classId) {
+    super("Unknown class id " + classId);
+    this.classId = classId;
+  }
+
+  int getClassId() {
+    return classId;
+  }
+}
@@ -0,0 +1,386 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.impl.ServerID;
+import io.vertx.core.shareddata.impl.ClusterSerializable;
+import io.vertx.spi.cluster.zookeeper.ValueCodec;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The codecs of one cluster map: the built-in codecs plus the ones registered by the user for this map name.
+ * <p>
+ * Layout of a stored value is {@code [tag][payload]}. Tag 0 and 1 are the Java serialization and
+ * {@code ClusterSerializable} layouts written by previous versions, so existing data can still be read.
+ * {@code ClusterSerializable} values whose class has an id in the {@link ClassIdRegistry} are written as
+ * {@code [tag][varint class id][payload]} instead of embedding the class name, decoding one whose id is not known
+ * locally yet fails with an {@link UnknownClassIdException}. A value put with a ttl is preceded by
+ * the header {@code [deadline tag][8 bytes deadline]}, the time in milliseconds after which the value is expired.
+ * <p>
+ * Previous versions only read tag 0 and 1. During a rolling upgrade, the {@code legacyEncoding} option writes every
+ * value with one of these layouts, except for the header of the values put with a ttl.
+ * <p>
+ * Created by Stream.Liu
+ */
+public class ValueCodecs {
+
+  static final int TAG_JAVA = 0;
+  static final int TAG_CLUSTER_SERIALIZABLE = 1;
+  static final int TAG_NULL = 2;
+  static final int TAG_STRING = 3;
+  static final int TAG_BUFFER = 4;
+  static final int TAG_JSON_OBJECT = 5;
+  static final int TAG_JSON_ARRAY = 6;
+  static final int TAG_BYTE = 7;
+  static final int TAG_SHORT = 8;
+  static final int TAG_INTEGER = 9;
+  static final int TAG_LONG = 10;
+  static final int TAG_FLOAT = 11;
+  static final int TAG_DOUBLE = 12;
+  static final int TAG_BOOLEAN = 13;
+  static final int TAG_CHARACTER = 14;
+  static final int TAG_SERVER_ID = 15;
+  static final int TAG_KEY_VALUE = 16;
+  static final int TAG_CLUSTER_SERIALIZABLE_ID = 17;
+  static final int TAG_DEADLINE = 18;
+
+  /**
+   * Deadline of a value that never expires.
+   */
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+  private static final int DEADLINE_HEADER_LENGTH = 1 + 8;
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  private static final ValueCodec<?>[] BUILT_IN = {
+    new BuiltIn<>(TAG_STRING, String.class, (v, b) -> b.appendString(v), Buffer::toString),
+    new BuiltIn<>(TAG_BUFFER, Buffer.class, (v, b) -> b.appendBuffer(v), Buffer::copy),
+    new BuiltIn<>(TAG_JSON_OBJECT, JsonObject.class, (v, b) -> b.appendString(v.encode()), b -> new JsonObject(b.toString())),
+    new BuiltIn<>(TAG_JSON_ARRAY, JsonArray.class, (v, b) -> b.appendString(v.encode()), b -> new JsonArray(b.toString())),
+    new BuiltIn<>(TAG_BYTE, Byte.class, (v, b) -> b.appendByte(v), b -> b.getByte(0)),
+    new BuiltIn<>(TAG_SHORT, Short.class, (v, b) -> b.appendShort(v), b -> b.getShort(0)),
+    new BuiltIn<>(TAG_INTEGER, Integer.class, (v, b) -> b.appendInt(v), b -> b.getInt(0)),
+    new BuiltIn<>(TAG_LONG, Long.class, (v, b) -> b.appendLong(v), b -> b.getLong(0)),
+    new BuiltIn<>(TAG_FLOAT, Float.class, (v, b) -> b.appendFloat(v), b -> b.getFloat(0)),
+    new BuiltIn<>(TAG_DOUBLE, Double.class, (v, b) -> b.appendDouble(v), b -> b.getDouble(0)),
+    new BuiltIn<>(TAG_BOOLEAN, Boolean.class, (v, b) -> b.appendByte((byte) (v ? 1 : 0)), b -> b.getByte(0) != 0),
+    new BuiltIn<>(TAG_CHARACTER, Character.class, (v, b) -> b.appendShort((short) v.charValue()), b -> (char) b.getShort(0)),
+    new BuiltIn<>(TAG_SERVER_ID, ServerID.class,
+      (v, b) -> b.appendInt(v.port).appendString(v.host),
+      b -> new ServerID(b.getInt(0), b.getString(4, b.length())))
+  };
+
+  public static final ValueCodecs DEFAULT = new ValueCodecs(Collections.emptyList(), null);
+
+  private final Map<Class<?>, ValueCodec<?>> codecsByType = new HashMap<>();
+  private final ValueCodec<?>[] codecsByTag = new ValueCodec<?>[ValueCodec.MAX_USER_TAG + 1];
+  private final ClassIdRegistry classIds;
+  private final boolean legacyEncoding;
+
+  /**
+   * @param userCodecs the codecs registered for the map
+   * @param classIds   the class id dictionary of the cluster, or null to always write class names
+   */
+  public ValueCodecs(Collection<ValueCodec<?>> userCodecs, ClassIdRegistry classIds) {
+    this(userCodecs, classIds, false);
+  }
+
+  /**
+   * @param userCodecs     the codecs registered for the map
+   * @param classIds       the class id dictionary of the cluster, or null to always write class names
+   * @param legacyEncoding whether values are written in the layouts of previous versions, tag 0 and 1 only, so that
+   *                       the nodes not upgraded yet can read them. All the layouts are read either way
+   */
+  public ValueCodecs(Collection<ValueCodec<?>> userCodecs, ClassIdRegistry classIds, boolean legacyEncoding) {
+    this.classIds = classIds;
+    this.legacyEncoding = legacyEncoding;
+    for (ValueCodec<?> codec : BUILT_IN) {
+      register(codec);
+    }
+    for (ValueCodec<?> codec : userCodecs) {
+      if (codec.tag() < ValueCodec.MIN_USER_TAG || codec.tag() > ValueCodec.MAX_USER_TAG) {
+        throw new IllegalArgumentException("codec tag must be between " + ValueCodec.MIN_USER_TAG + " and "
+          + ValueCodec.MAX_USER_TAG + ", got " + codec.tag());
+      }
+      if (codecsByTag[codec.tag()] != null) {
+        throw new IllegalArgumentException("codec tag " + codec.tag() + " is already registered.");
+      }
+      register(codec);
+    }
+  }
+
+  private void register(ValueCodec<?> codec) {
+    codecsByTag[codec.tag()] = codec;
+    codecsByType.put(codec.type(), codec);
+  }
+
+  /**
+   * Encode the value into a pooled buffer and copy it once into an array of the exact size, which is what zookeeper
+   * sends.
+   */
+  public byte[] encode(Object object) throws IOException {
+    return encode(object, NO_DEADLINE);
+  }
+
+  /**
+   * Encode the value behind a header holding its deadline, unless it is {@link #NO_DEADLINE}.
+   */
+  public byte[] encode(Object object, long deadline) throws IOException {
+    ByteBuf byteBuf = PooledByteBufAllocator.DEFAULT.heapBuffer(INITIAL_CAPACITY);
+    try {
+      if (deadline != NO_DEADLINE) {
+        byteBuf.writeByte(TAG_DEADLINE);
+        byteBuf.writeLong(deadline);
+      }
+      encode(object, byteBuf);
+      byte[] bytes = new byte[byteBuf.readableBytes()];
+      byteBuf.getBytes(byteBuf.readerIndex(), bytes);
+      return bytes;
+    } finally {
+      byteBuf.release();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void encode(Object object, ByteBuf byteBuf) throws IOException {
+    if (legacyEncoding) {
+      if (object instanceof ClusterSerializable) {
+        encodeWithClassName((ClusterSerializable) object, byteBuf);
+      } else {
+        encodeWithJavaSerialization(object, byteBuf);
+      }
+      return;
+    }
+    if (object == null) {
+      byteBuf.writeByte(TAG_NULL);
+      return;
+    }
+    Class<?> type = object instanceof Buffer ? Buffer.class : object.getClass();
+    ValueCodec<Object> codec = (ValueCodec<Object>) codecsByType.get(type);
+    if (codec != null) {
+      byteBuf.writeByte(codec.tag());
+      codec.encode(object, Buffer.buffer(byteBuf));
+      return;
+    }
+    if (object instanceof ZKSyncMap.KeyValue) {
+      ZKSyncMap.KeyValue<?, ?> keyValue = (ZKSyncMap.KeyValue<?, ?>) object;
+      byteBuf.writeByte(TAG_KEY_VALUE);
+      int lengthIndex = byteBuf.writerIndex();
+      byteBuf.writeInt(0);
+      encode(keyValue.getKey(), byteBuf);
+      byteBuf.setInt(lengthIndex, byteBuf.writerIndex() - lengthIndex - 4);
+      encode(keyValue.getValue(), byteBuf);
+      return;
+    }
+    if (object instanceof ClusterSerializable) {
+      ClusterSerializable clusterSerializable = (ClusterSerializable) object;
+      int classId = classIds != null ? classIds.idOf(object.getClass()) : -1;
+      if (classId >= 0) {
+        byteBuf.writeByte(TAG_CLUSTER_SERIALIZABLE_ID);
+        for (; (classId & ~0x7F) != 0; classId >>>= 7) {
+          byteBuf.writeByte((classId & 0x7F) | 0x80);
+        }
+        byteBuf.writeByte(classId);
+        clusterSerializable.writeToBuffer(Buffer.buffer(byteBuf));
+      } else {
+        encodeWithClassName(clusterSerializable, byteBuf);
+      }
+      return;
+    }
+    encodeWithJavaSerialization(object, byteBuf);
+  }
+
+  private static void encodeWithClassName(ClusterSerializable clusterSerializable, ByteBuf byteBuf) throws IOException {
+    byteBuf.writeByte(TAG_CLUSTER_SERIALIZABLE);
+    new ByteBufOutputStream(byteBuf).writeUTF(clusterSerializable.getClass().getName());
+    int lengthIndex = byteBuf.writerIndex();
+    byteBuf.writeInt(0);
+    clusterSerializable.writeToBuffer(Buffer.buffer(byteBuf));
+    byteBuf.setInt(lengthIndex, byteBuf.writerIndex() - lengthIndex - 4);
+  }
+
+  private static void encodeWithJavaSerialization(Object object, ByteBuf byteBuf) throws IOException {
+    byteBuf.writeByte(TAG_JAVA);
+    ObjectOutput objectOutput = new ObjectOutputStream(new ByteBufOutputStream(byteBuf));
+    objectOutput.writeObject(object);
+    objectOutput.flush();
+  }
+
+  /**
+   * @return the deadline in the header of the encoded value, {@link #NO_DEADLINE} when it has none
+   */
+  public static long deadlineOf(byte[] bytes) {
+    if (bytes == null || bytes.length < DEADLINE_HEADER_LENGTH || bytes[0] != TAG_DEADLINE) {
+      return NO_DEADLINE;
+    }
+    return Unpooled.wrappedBuffer(bytes).getLong(1);
+  }
+
+  /**
+   * @return the encoded value with the header of the deadline, replacing the header it already has
+   */
+  static byte[] withDeadline(byte[] bytes, long deadline) {
+    int offset = deadlineOf(bytes) != NO_DEADLINE ? DEADLINE_HEADER_LENGTH : 0;
+    if (deadline == NO_DEADLINE) {
+      return offset == 0 ? bytes : Arrays.copyOfRange(bytes, offset, bytes.length);
+    }
+    byte[] result = new byte[DEADLINE_HEADER_LENGTH + bytes.length - offset];
+    Unpooled.wrappedBuffer(result).setByte(0, TAG_DEADLINE).setLong(1, deadline);
+    System.arraycopy(bytes, offset, result, DEADLINE_HEADER_LENGTH, bytes.length - offset);
+    return result;
+  }
+
+  /**
+   * @return whether two values encoded with the same tag are equal only if their bytes are, true for the strings,
+   * buffers and primitives. The class of a {@code ClusterSerializable} is written as a name or as an id, and neither
+   * Java serialization, JSON nor the codecs of the user promise a single encoding of a value
+   */
+  static boolean isCanonical(int tag) {
+    return tag == TAG_NULL || tag >= TAG_STRING && tag <= TAG_SERVER_ID && tag != TAG_JSON_OBJECT && tag != TAG_JSON_ARRAY;
+  }
+
+  /**
+   * @return the tag of the encoded value, after the header of its deadline
+   */
+  static int tagOf(byte[] bytes) {
+    return bytes[deadlineOf(bytes) != NO_DEADLINE ? DEADLINE_HEADER_LENGTH : 0];
+  }
+
+  /**
+   * Decode straight from the data of the node, payloads are handed to the codecs as views of the array.
+   */
+  public <T> T decode(byte[] bytes) throws Exception {
+    return decode(Unpooled.wrappedBuffer(bytes));
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> T decode(ByteBuf byteBuf) throws Exception {
+    int tag = byteBuf.readByte();
+    switch (tag) {
+      case TAG_NULL:
+        return null;
+      case TAG_JAVA:
+        ObjectInputStream objectIn = new ObjectInputStream(new ByteBufInputStream(byteBuf));
+        return (T) objectIn.readObject();
+      case TAG_CLUSTER_SERIALIZABLE:
+        String className = new ByteBufInputStream(byteBuf).readUTF();
+        ClusterSerializable clusterSerializable = ClusterSerializableFactory.newInstance(className);
+        int length = byteBuf.readInt();
+        clusterSerializable.readFromBuffer(0, Buffer.buffer(byteBuf.slice(byteBuf.readerIndex(), length)));
+        return (T) clusterSerializable;
+      case TAG_CLUSTER_SERIALIZABLE_ID:
+        return (T) decodeClusterSerializable(byteBuf);
+      case TAG_DEADLINE:
+        byteBuf.skipBytes(8);
+        return decode(byteBuf);
+      case TAG_KEY_VALUE:
+        int keyLength = byteBuf.readInt();
+        Object key = decode(byteBuf.readSlice(keyLength));
+        return (T) new ZKSyncMap.KeyValue<>(key, decode(byteBuf));
+      default:
+        ValueCodec<?> codec = tag > 0 ? codecsByTag[tag] : null;
+        if (codec == null) {
+          throw new IllegalStateException("No codec registered for tag " + tag);
+        }
+        return (T) codec.decode(Buffer.buffer(byteBuf.slice()));
+    }
+  }
+
+  /**
+   * Read the class name of an id met while decoding in the background, see {@link ClassIdRegistry#resolve(int, Handler)}.
+   */
+  void resolve(UnknownClassIdException e, Handler<AsyncResult<Void>> handler) {
+    classIds.resolve(e.getClassId(), handler);
+  }
+
+  /**
+   * Read the class name of an id met while decoding, blocking.
+   */
+  void load(UnknownClassIdException e) {
+    classIds.load(e.getClassId());
+  }
+
+  private ClusterSerializable decodeClusterSerializable(ByteBuf byteBuf) throws Exception {
+    if (classIds == null) {
+      throw new IllegalStateException("Class ids are not available to this map.");
+    }
+    int classId = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = byteBuf.readByte();
+      classId |= (b & 0x7F) << shift;
+      if (b >= 0) break;
+    }
+    ClusterSerializable clusterSerializable = ClusterSerializableFactory.newInstance(classIds.nameOf(classId));
+    clusterSerializable.readFromBuffer(0, Buffer.buffer(byteBuf.slice()));
+    return clusterSerializable;
+  }
+
+  private static class BuiltIn<T> implements ValueCodec<T> {
+
+    private final int tag;
+    private final Class<T> type;
+    private final BiConsumer<T, Buffer> encoder;
+    private final Function<Buffer, T> decoder;
+
+    private BuiltIn(int tag, Class<T> type, BiConsumer<T, Buffer> encoder, Function<Buffer, T> decoder) {
+      this.tag = tag;
+      this.type = type;
+      this.encoder = encoder;
+      this.decoder = decoder;
+    }
+
+    @Override
+    public int tag() {
+      return tag;
+    }
+
+    @Override
+    public Class<T> type() {
+      return type;
+    }
+
+    @Override
+    public void encode(T value, Buffer buffer) {
+      encoder.accept(value, buffer);
+    }
+
+    @Override
+    public T decode(Buffer buffer) {
+      return decoder.apply(buffer);
+    }
+  }
+}
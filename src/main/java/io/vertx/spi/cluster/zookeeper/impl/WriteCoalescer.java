@@ -0,0 +1,183 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Collects the writes of a map arriving within a time window, or up to a maximum number of writes, and commits them
+ * together with {@link ZKMap#commit(List)}.
+ * <p>
+ * Batches are committed one after the other and the writes keep their arrival order inside a batch, so the writes of a
+ * key are applied in the order they were made. The handler of each write is called on the context of its caller.
+ * Conditional operations are not coalesced, they {@link #flush(String, Handler) flush} the writes of their key first.
+ * <p>
+ * Created by Stream.Liu
+ */
+class WriteCoalescer {
+
+  private final Vertx vertx;
+  private final long window;
+  private final int maxOperations;
+  private final Function<List<BatchOperation>, Future<List<AsyncResult<Void>>>> committer;
+
+  private final List<PendingWrite> pending = new ArrayList<>();
+  //whether the node exists once the writes already queued are applied, the cache of the map does not know it yet.
+  private final Map<String, Hint> hints = new HashMap<>();
+  private final List<Waiter> waiters = new ArrayList<>();
+  private long batch;
+  private long timerID = -1;
+  private Future<Void> lastCommit = Future.succeededFuture();
+
+  WriteCoalescer(Vertx vertx, long window, int maxOperations,
+                 Function<List<BatchOperation>, Future<List<AsyncResult<Void>>>> committer) {
+    this.vertx = vertx;
+    this.window = window;
+    this.maxOperations = maxOperations;
+    this.committer = committer;
+  }
+
+  /**
+   * Create the node or set its data.
+   *
+   * @param exists whether the node is believed to exist, used unless writes of the same node are already queued
+   */
+  synchronized void write(String path, byte[] data, boolean exists, Handler<AsyncResult<Void>> handler) {
+    Hint hint = hints.get(path);
+    if (hint != null) {
+      exists = hint.exists;
+    }
+    add(exists ? BatchOperation.setData(path, data) : BatchOperation.create(path, data), true, handler);
+  }
+
+  synchronized void delete(String path, Handler<AsyncResult<Void>> handler) {
+    add(BatchOperation.delete(path), false, handler);
+  }
+
+  /**
+   * Commit the queued writes of the node without waiting for the window, the handler is called once all the writes of
+   * the node made so far are applied, whether they succeeded or not. It is called right away when there is none.
+   */
+  void flush(String path, Handler<AsyncResult<Void>> handler) {
+    synchronized (this) {
+      Hint hint = hints.get(path);
+      if (hint != null) {
+        if (hint.batch == batch) {
+          flush();
+        }
+        waiters.add(new Waiter(hint.batch, vertx.getOrCreateContext(), handler));
+        return;
+      }
+    }
+    handler.handle(Future.succeededFuture());
+  }
+
+  private void add(BatchOperation operation, boolean existsAfter, Handler<AsyncResult<Void>> handler) {
+    pending.add(new PendingWrite(operation, vertx.getOrCreateContext(), handler));
+    hints.put(operation.path, new Hint(existsAfter, batch));
+    if (pending.size() >= maxOperations) {
+      flush();
+    } else if (timerID == -1) {
+      timerID = vertx.setTimer(window, id -> {
+        synchronized (this) {
+          timerID = -1;
+          flush();
+        }
+      });
+    }
+  }
+
+  private void flush() {
+    if (timerID != -1) {
+      vertx.cancelTimer(timerID);
+      timerID = -1;
+    }
+    if (pending.isEmpty()) {
+      return;
+    }
+    List<PendingWrite> writes = new ArrayList<>(pending);
+    pending.clear();
+    long committedBatch = batch++;
+    Future<Void> previous = lastCommit;
+    Future<Void> done = Future.future();
+    lastCommit = done;
+    previous.setHandler(v -> committer.apply(writes.stream().map(write -> write.operation).collect(Collectors.toList()))
+      .setHandler(ar -> {
+        for (int i = 0; i < writes.size(); i++) {
+          PendingWrite write = writes.get(i);
+          AsyncResult<Void> result = ar.succeeded() ? ar.result().get(i) : Future.failedFuture(ar.cause());
+          write.context.runOnContext(aVoid -> write.handler.handle(result));
+        }
+        synchronized (this) {
+          //the writes are applied, the cache of the map catches up with them.
+          hints.values().removeIf(hint -> hint.batch <= committedBatch);
+          waiters.removeIf(waiter -> {
+            if (waiter.batch > committedBatch) {
+              return false;
+            }
+            waiter.context.runOnContext(aVoid -> waiter.handler.handle(Future.succeededFuture()));
+            return true;
+          });
+          done.complete();
+        }
+      }));
+  }
+
+  private static final class PendingWrite {
+    final BatchOperation operation;
+    final Context context;
+    final Handler<AsyncResult<Void>> handler;
+
+    PendingWrite(BatchOperation operation, Context context, Handler<AsyncResult<Void>> handler) {
+      this.operation = operation;
+      this.context = context;
+      this.handler = handler;
+    }
+  }
+
+  private static final class Waiter {
+    final long batch;
+    final Context context;
+    final Handler<AsyncResult<Void>> handler;
+
+    Waiter(long batch, Context context, Handler<AsyncResult<Void>> handler) {
+      this.batch = batch;
+      this.context = context;
+      this.handler = handler;
+    }
+  }
+
+  private static final class Hint {
+    final boolean exists;
+    final long batch;
+
+    Hint(boolean exists, long batch) {
+      this.exists = exists;
+      this.batch = batch;
+    }
+  }
+}
@@ -16,72 +16,370 @@
 package io.vertx.spi.cluster.zookeeper.impl;
 
 import io.vertx.core.*;
-import io.vertx.core.json.JsonObject;
+import io.vertx.core.logging.Logger;
+import io.vertx.core.logging.LoggerFactory;
 import io.vertx.core.shareddata.AsyncMap;
+import io.vertx.spi.cluster.zookeeper.NearCacheStats;
+import io.vertx.spi.cluster.zookeeper.VersionedValue;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.framework.recipes.cache.PathChildrenCache;
-import org.apache.curator.framework.recipes.cache.PathChildrenCacheEvent;
-import org.apache.zookeeper.data.Stat;
+import org.apache.curator.framework.recipes.cache.PathChildrenCacheListener;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.KeeperException;
 
-import java.time.Instant;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-
-import static io.vertx.spi.cluster.zookeeper.impl.AsyncMapTTLMonitor.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 
 /**
+ * Async map whose keys are the children of the map node, or with the {@code buckets} option spread over a fixed number
+ * of bucket nodes {@code /asyncMap/<name>/<bucket>/<key>} chosen by the hash of the key, so that no single node gets
+ * too many children. Each bucket has its own cache. Neither the map node nor the bucket nodes are removed, their caches
+ * would stop watching them. All the nodes of the cluster must use the same number of buckets for a map.
+ * <p>
  * Created by Stream.Liu
  */
 public class ZKAsyncMap<K, V> extends ZKMap<K, V> implements AsyncMap<K, V> {
 
-  private final PathChildrenCache curatorCache;
-  private AsyncMapTTLMonitor<K, V> asyncMapTTLMonitor;
+  private static final Logger logger = LoggerFactory.getLogger(ZKAsyncMap.class);
+
+  //the nodes whose children are the keys, the map node or the bucket nodes.
+  private final String[] parentPaths;
+  private final PathChildrenCache[] curatorCaches;
+  private volatile boolean cacheReady;
+  private volatile long cacheConfirmedAt;
+  //incremented on every disconnection, a rebuild only marks the cache ready when no disconnection happened meanwhile.
+  private final AtomicInteger disconnections = new AtomicInteger();
+  //every cache sends the connection events, only the first one of each disconnection and reconnection is handled.
+  private final AtomicBoolean connected = new AtomicBoolean(true);
+  private final WriteCoalescer coalescer;
+  private final NearCache nearCache;
+  private AsyncMapTTLMonitor asyncMapTTLMonitor;
+
+  public ZKAsyncMap(Vertx vertx, CuratorFramework curator, AsyncMapTTLMonitor asyncMapTTLMonitor, String mapName) {
+    this(vertx, curator, asyncMapTTLMonitor, mapName, ValueCodecs.DEFAULT, ZKMapOptions.DEFAULT);
+  }
 
-  public ZKAsyncMap(Vertx vertx, CuratorFramework curator, AsyncMapTTLMonitor<K,V> asyncMapTTLMonitor, String mapName) {
-    super(curator, vertx, ZK_PATH_ASYNC_MAP, mapName);
-    this.curatorCache = new PathChildrenCache(curator, mapPath, true);
-    CountDownLatch startLatch = new CountDownLatch(1);
-    this.curatorCache.getListenable().addListener((curatorFramework, pathChildrenCacheEvent) -> {
-      if (pathChildrenCacheEvent.getType() == PathChildrenCacheEvent.Type.INITIALIZED) {
-        startLatch.countDown();
+  public ZKAsyncMap(Vertx vertx, CuratorFramework curator, AsyncMapTTLMonitor asyncMapTTLMonitor, String mapName,
+                    ValueCodecs codecs, ZKMapOptions options) {
+    super(curator, vertx, ZK_PATH_ASYNC_MAP, mapName, codecs, options);
+    this.coalescer = options.getCoalesceWindow() > 0 ?
+      new WriteCoalescer(vertx, options.getCoalesceWindow(), options.getBatchSize(), this::commit) : null;
+    this.nearCache = createNearCache(mapName, options);
+    this.parentPaths = new String[Math.max(options.getBuckets(), 1)];
+    for (int i = 0; i < parentPaths.length; i++) {
+      parentPaths[i] = options.getBuckets() > 0 ? bucketPath(i) : mapPath;
+    }
+    this.curatorCaches = new PathChildrenCache[parentPaths.length];
+    PathChildrenCacheListener listener = (curatorFramework, pathChildrenCacheEvent) -> {
+      switch (pathChildrenCacheEvent.getType()) {
+        case CONNECTION_SUSPENDED:
+        case CONNECTION_LOST:
+          cacheReady = false;
+          if (connected.compareAndSet(true, false)) {
+            disconnections.incrementAndGet();
+          }
+          break;
+        case CONNECTION_RECONNECTED:
+          //also sent for the first connection, while the initial cache is built.
+          if (connected.compareAndSet(false, true)) {
+            rebuildCaches(disconnections.get());
+          }
+          break;
+        case CHILD_UPDATED:
+        case CHILD_REMOVED:
+          decodedValues.invalidate(pathChildrenCacheEvent.getData().getPath());
+          if (nearCache != null) {
+            nearCache.invalidate(pathChildrenCacheEvent.getData().getPath());
+          }
+          cacheConfirmedAt = System.nanoTime();
+          break;
+        default:
+          cacheConfirmedAt = System.nanoTime();
       }
-    });
+    };
     try {
-      curatorCache.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+      for (int i = 0; i < curatorCaches.length; i++) {
+        curatorCaches[i] = new PathChildrenCache(curator, parentPaths[i], options.isCacheData());
+        curatorCaches[i].getListenable().addListener(listener);
+        //the initial cache is built synchronously, no INITIALIZED event is sent in this mode.
+        curatorCaches[i].start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+      }
       this.asyncMapTTLMonitor = asyncMapTTLMonitor;
-      startLatch.await(1, TimeUnit.SECONDS);
+      cacheConfirmedAt = System.nanoTime();
+      cacheReady = true;
     } catch (Exception e) {
       throw new VertxException(e);
     }
   }
 
+  /**
+   * The near cache answers the reads that the cache of the map answers, only a {@link ConsistencyLevel#CACHED} map
+   * without cached data has one.
+   */
+  private static NearCache createNearCache(String mapName, ZKMapOptions options) {
+    if (options.isCacheData() || options.getValueCacheSize() <= 0 && options.getValueCacheMaxBytes() <= 0) {
+      return null;
+    }
+    if (options.getConsistency() != ConsistencyLevel.CACHED) {
+      logger.warn("The near cache of the map " + mapName + " is only used with the cached consistency, it is disabled.");
+      return null;
+    }
+    return new NearCache(options);
+  }
+
+  /**
+   * The cache refreshes itself on reconnection without telling when it is done, it is rebuilt instead and only marked
+   * ready once the rebuild is complete. The rebuild sends no event, the decoded values and the near cache are checked
+   * against the {@code mzxid} of the rebuilt nodes. The caches of all the buckets are rebuilt once per disconnection.
+   */
+  private void rebuildCaches(int generation) {
+    vertx.<Void>executeBlocking(future -> {
+      try {
+        for (PathChildrenCache cache : curatorCaches) {
+          cache.rebuild();
+        }
+        future.complete();
+      } catch (Exception e) {
+        future.fail(e);
+      }
+    }, false, ar -> {
+      if (ar.failed()) {
+        logger.warn("Failed to rebuild the cache of the map " + mapPath + ", reads go to the server.", ar.cause());
+      } else if (disconnections.get() == generation) {
+        cacheConfirmedAt = System.nanoTime();
+        cacheReady = true;
+      }
+    });
+  }
+
+  @Override
+  void closeCaches() {
+    for (PathChildrenCache cache : curatorCaches) {
+      try {
+        cache.close();
+      } catch (IOException e) {
+        throw new VertxException(e);
+      }
+    }
+  }
+
+  @Override
+  String keyPath(K k) {
+    return options.getBuckets() > 0 ? bucketPath(bucketOf(k.toString())) + "/" + k.toString() : super.keyPath(k);
+  }
+
+  private String bucketPath(int bucket) {
+    return mapPath + "/" + Integer.toHexString(bucket);
+  }
+
+  /**
+   * The bucket only depends on the key string, {@link String#hashCode()} being the same on every JVM.
+   */
+  private int bucketOf(String key) {
+    return Math.floorMod(key.hashCode(), options.getBuckets());
+  }
+
+  /**
+   * @return the counters of the near cache of the map, all zero when the map has no near cache
+   */
+  public NearCacheStats nearCacheStats() {
+    return nearCache != null ? nearCache.stats() : new NearCacheStats(0, 0, 0, 0);
+  }
+
+  private ChildData cachedData(String path) {
+    PathChildrenCache cache = options.getBuckets() > 0 ?
+      curatorCaches[bucketOf(ZKPaths.getNodeFromPath(path))] : curatorCaches[0];
+    return cache.getCurrentData(path);
+  }
+
+  /**
+   * @return the node of the path known by the cache, with its data read from the server when the cache holds no data
+   */
+  private Future<ChildData> cachedNode(String path) {
+    ChildData cached = cachedData(path);
+    if (cached == null || options.isCacheData()) {
+      return Future.succeededFuture(cached);
+    }
+    ChildData node = nearCache != null ? nearCache.get(path, cached.getStat().getMzxid()) : null;
+    if (node != null) {
+      return Future.succeededFuture(node);
+    }
+    return readDataFromServer(path).map(childData -> {
+      if (childData != null && nearCache != null) {
+        nearCache.put(childData);
+      }
+      return childData;
+    });
+  }
+
+  /**
+   * The cache of a {@link ConsistencyLevel#CACHED} map is used while connected and as long as the last event of the
+   * cache, or the last read from the server, is not older than the max staleness of the map.
+   */
+  private boolean cacheIsFresh() {
+    if (options.getConsistency() != ConsistencyLevel.CACHED || !cacheReady) {
+      return false;
+    }
+    long maxStaleness = options.getMaxStaleness();
+    return maxStaleness < 0 || System.nanoTime() - cacheConfirmedAt <= TimeUnit.MILLISECONDS.toNanos(maxStaleness);
+  }
+
+  @Override
+  Boolean cachedExists(String path) {
+    return cacheIsFresh() ? cachedData(path) != null : null;
+  }
+
+  /**
+   * @return the node of the path from the cache when it is fresh enough, from the server otherwise
+   */
+  @Override
+  Future<ChildData> currentData(String path) {
+    if (cacheIsFresh()) {
+      return cachedNode(path);
+    }
+    long readAt = System.nanoTime();
+    return readData(path).map(childData -> {
+      //the server answers after delivering the watch events of the session, the cache has been notified of any
+      //change made before this read.
+      if (cacheReady && readAt - cacheConfirmedAt > 0) {
+        cacheConfirmedAt = readAt;
+      }
+      return childData;
+    });
+  }
+
   @Override
   public void get(K k, Handler<AsyncResult<V>> asyncResultHandler) {
     assertKeyIsNotNull(k)
-      .compose(aVoid -> checkExists(k))
-      .compose(checkResult -> {
-        Future<V> future = Future.future();
-        if (checkResult) {
-          ChildData childData = curatorCache.getCurrentData(keyPath(k));
-          if (childData != null && childData.getData() != null) {
-            try {
-              V value = asObject(childData.getData());
-              future.complete(value);
-            } catch (Exception e) {
-              future.fail(e);
-            }
-          } else {
-            future.complete();
-          }
+      .compose(aVoid -> currentData(keyPath(k)))
+      .compose(this::readValue)
+      .setHandler(asyncResultHandler);
+  }
+
+  /**
+   * Get the values of the keys. The reads are all sent at once, after a single sync for a
+   * {@link ConsistencyLevel#LINEARIZABLE} map, or answered by the cache when it is fresh enough.
+   *
+   * @param keys          the keys to get
+   * @param resultHandler the result of each key, null for a missing key
+   */
+  public void getAll(Collection<K> keys, Handler<AsyncResult<Map<K, AsyncResult<V>>>> resultHandler) {
+    boolean fromCache = cacheIsFresh();
+    Future<Void> synced = !fromCache && options.getConsistency() == ConsistencyLevel.LINEARIZABLE ?
+      sync(mapPath) : Future.succeededFuture();
+    synced.compose(aVoid -> {
+      Map<K, Future<V>> reads = new LinkedHashMap<>();
+      for (K k : keys) {
+        if (k == null) {
+          reads.put(null, Future.failedFuture("key can not be null."));
         } else {
-          //ignore
-          future.complete();
+          String path = keyPath(k);
+          Future<ChildData> read = fromCache ? cachedNode(path) : readDataFromServer(path);
+          reads.put(k, read.compose(this::readValue));
         }
-        return future;
-      })
-      .setHandler(asyncResultHandler);
+      }
+      Future<Map<K, AsyncResult<V>>> future = Future.future();
+      CompositeFuture.join(new ArrayList<>(reads.values())).setHandler(joined -> {
+        Map<K, AsyncResult<V>> results = new LinkedHashMap<>();
+        reads.forEach(results::put);
+        future.complete(results);
+      });
+      return future;
+    }).setHandler(resultHandler);
+  }
+
+  /**
+   * Put the entries, in multi transactions of at most {@code batchSize} operations.
+   *
+   * @param entries       the entries to put
+   * @param resultHandler the result of each key
+   */
+  public void putAll(Map<K, V> entries, Handler<AsyncResult<Map<K, AsyncResult<Void>>>> resultHandler) {
+    Map<K, AsyncResult<Void>> results = new LinkedHashMap<>();
+    List<K> keys = new ArrayList<>(entries.size());
+    List<String> paths = new ArrayList<>(entries.size());
+    List<byte[]> values = new ArrayList<>(entries.size());
+    entries.forEach((k, v) -> {
+      if (k == null || v == null) {
+        results.put(k, Future.failedFuture("key and value can not be null."));
+        return;
+      }
+      try {
+        values.add(asByte(v));
+        paths.add(keyPath(k));
+        keys.add(k);
+        results.put(k, null);
+      } catch (IOException e) {
+        results.put(k, Future.failedFuture(e));
+      }
+    });
+    flushed(paths).compose(aVoid -> {
+      List<BatchOperation> operations = new ArrayList<>(paths.size());
+      for (int i = 0; i < paths.size(); i++) {
+        String path = paths.get(i);
+        operations.add(cachedData(path) != null ?
+          BatchOperation.setData(path, values.get(i)) : BatchOperation.create(path, values.get(i)));
+      }
+      return commit(operations);
+    }).map(committed -> {
+      for (int i = 0; i < keys.size(); i++) {
+        results.put(keys.get(i), committed.get(i));
+      }
+      return results;
+    }).setHandler(resultHandler);
+  }
+
+  /**
+   * Remove the keys, in multi transactions of at most {@code batchSize} operations.
+   *
+   * @param keys          the keys to remove
+   * @param resultHandler the previous value of each key, null when the key was not in the map
+   */
+  public void removeAll(Collection<K> keys, Handler<AsyncResult<Map<K, AsyncResult<V>>>> resultHandler) {
+    List<String> paths = new ArrayList<>(keys.size());
+    for (K k : keys) {
+      if (k != null) {
+        paths.add(keyPath(k));
+      }
+    }
+    flushed(paths).compose(aVoid -> {
+      Future<Map<K, AsyncResult<V>>> read = Future.future();
+      getAll(keys, read.completer());
+      return read;
+    }).compose(values -> {
+      Map<K, AsyncResult<V>> results = new LinkedHashMap<>(values);
+      List<K> removed = new ArrayList<>();
+      List<BatchOperation> operations = new ArrayList<>();
+      values.forEach((k, value) -> {
+        if (value.succeeded() && value.result() != null) {
+          removed.add(k);
+          operations.add(BatchOperation.delete(keyPath(k)));
+        }
+      });
+      return commit(operations).map(committed -> {
+        for (int i = 0; i < removed.size(); i++) {
+          AsyncResult<Void> result = committed.get(i);
+          if (result.failed() && !(result.cause() instanceof KeeperException.NoNodeException)) {
+            results.put(removed.get(i), Future.failedFuture(result.cause()));
+          } else if (result.failed()) {
+            //removed by someone else in the meantime.
+            results.put(removed.get(i), Future.succeededFuture());
+          }
+        }
+        return results;
+      });
+    }).setHandler(resultHandler);
   }
 
   @Override
@@ -95,18 +393,19 @@ public class ZKAsyncMap<K, V> extends ZKMap<K, V> implements AsyncMap<K, V> {
   }
 
   private void put(K k, V v, Optional<Long> timeoutOptional, Handler<AsyncResult<Void>> completionHandler) {
+    long deadline = deadline(timeoutOptional);
     assertKeyAndValueAreNotNull(k, v)
-      .compose(aVoid -> checkExists(k))
-      .compose(checkResult -> checkResult ? setData(k, v) : create(k, v))
       .compose(aVoid -> {
-        JsonObject body = new JsonObject().put(TTL_KEY_BODY_KEY_PATH, keyPath(k));
-        if (timeoutOptional.isPresent()) {
-          asyncMapTTLMonitor.addAsyncMapWithPath(keyPath(k), this);
-          body.put(TTL_KEY_BODY_TIMEOUT, timeoutOptional.get());
-        } else body.put(TTL_KEY_IS_CANCEL, true);
-        //publish a ttl message to all nodes.
-        vertx.eventBus().publish(TTL_KEY_HANDLER_ADDRESS, body);
-
+        try {
+          byte[] data = asByte(v, deadline);
+          recordExpiry(k, deadline);
+          return write(keyPath(k), data);
+        } catch (IOException e) {
+          return Future.failedFuture(e);
+        }
+      })
+      .compose(aVoid -> {
+        scheduleExpiry(k, deadline);
         Future<Void> future = Future.future();
         future.complete();
         return future;
@@ -114,6 +413,74 @@ public class ZKAsyncMap<K, V> extends ZKMap<K, V> implements AsyncMap<K, V> {
       .setHandler(completionHandler);
   }
 
+  /**
+   * The deadline is stored with the value, so that an expired value is not returned even if it has not been removed
+   * yet, whatever happened to the nodes since the put.
+   */
+  private static long deadline(Optional<Long> timeoutOptional) {
+    return timeoutOptional.map(timeout -> System.currentTimeMillis() + timeout).orElse(ValueCodecs.NO_DEADLINE);
+  }
+
+  private Future<Void> write(String path, byte[] data) {
+    //the cache tells which of create or setData is likely to succeed, no need to check on the server first.
+    boolean exists = cachedData(path) != null;
+    if (coalescer == null) {
+      return createOrSetData(path, data, exists);
+    }
+    Future<Void> future = Future.future();
+    coalescer.write(path, data, exists, future.completer());
+    return future;
+  }
+
+  /**
+   * The coalesced writes of the node still queued are committed first, a conditional operation reads and checks the
+   * node once the writes made before it are applied.
+   */
+  private Future<Void> flushed(String path) {
+    if (coalescer == null) {
+      return Future.succeededFuture();
+    }
+    Future<Void> future = Future.future();
+    coalescer.flush(path, future.completer());
+    return future;
+  }
+
+  @Override
+  <R> Future<R> compareAndSet(String path, CasFunction<R> function) {
+    return flushed(path).compose(aVoid -> super.compareAndSet(path, function));
+  }
+
+  private Future<Void> flushed(List<String> paths) {
+    if (coalescer == null) {
+      return Future.succeededFuture();
+    }
+    List<Future<Void>> flushes = new ArrayList<>(paths.size());
+    for (String path : paths) {
+      flushes.add(flushed(path));
+    }
+    return CompositeFuture.all(new ArrayList<>(flushes)).map((Void) null);
+  }
+
+  /**
+   * The key is recorded before its value is written, so that the expirer sweeps it even if the deadline sent after the
+   * write never reaches it. A key whose value is not written in the end is only swept once.
+   */
+  private void recordExpiry(K k, long deadline) {
+    if (deadline != ValueCodecs.NO_DEADLINE && asyncMapTTLMonitor != null) {
+      asyncMapTTLMonitor.record(keyPath(k));
+    }
+  }
+
+  /**
+   * Only the values put with a ttl are sent to the expirer. A later write without ttl needs no cancel, the expirer
+   * checks the deadline stored with the value before removing it.
+   */
+  private void scheduleExpiry(K k, long deadline) {
+    if (deadline != ValueCodecs.NO_DEADLINE && asyncMapTTLMonitor != null) {
+      asyncMapTTLMonitor.schedule(keyPath(k), deadline);
+    }
+  }
+
   @Override
   public void putIfAbsent(K k, V v, Handler<AsyncResult<V>> completionHandler) {
     putIfAbsent(k, v, Optional.empty(), completionHandler);
@@ -125,54 +492,59 @@ public class ZKAsyncMap<K, V> extends ZKMap<K, V> implements AsyncMap<K, V> {
   }
 
   private void putIfAbsent(K k, V v, Optional<Long> timeoutOptional, Handler<AsyncResult<V>> completionHandler) {
+    long deadline = deadline(timeoutOptional);
     assertKeyAndValueAreNotNull(k, v)
       .compose(aVoid -> {
-        Future<V> innerFuture = Future.future();
-        vertx.executeBlocking(future -> {
-          long startTime = Instant.now().toEpochMilli();
-          int retries = 0;
-
-          for (; ; ) {
-            try {
-              Stat stat = new Stat();
-              String path = keyPath(k);
-              V currentValue = getData(stat, path);
-              if (compareAndSet(startTime, retries++, stat, path, currentValue, v)) {
-                future.complete(currentValue);
-                return;
-              }
-            } catch (Exception e) {
-              future.fail(e);
-              return;
-            }
-          }
-        }, false, innerFuture.completer());
-        return innerFuture;
+        try {
+          byte[] data = asByte(v, deadline);
+          recordExpiry(k, deadline);
+          return createIfAbsent(keyPath(k), data);
+        } catch (IOException e) {
+          return Future.failedFuture(e);
+        }
       })
       .compose(value -> {
-        JsonObject body = new JsonObject().put(TTL_KEY_BODY_KEY_PATH, keyPath(k));
-        if (timeoutOptional.isPresent()) {
-          asyncMapTTLMonitor.addAsyncMapWithPath(keyPath(k), this);
-          body.put(TTL_KEY_BODY_TIMEOUT, timeoutOptional.get());
-        } else body.put(TTL_KEY_IS_CANCEL, true);
-        //publish a ttl message to all nodes.
-        vertx.eventBus().publish(TTL_KEY_HANDLER_ADDRESS, body);
-
+        //the ttl only applies when the value was put.
+        if (value == null) {
+          scheduleExpiry(k, deadline);
+        }
         return Future.succeededFuture(value);
       })
       .setHandler(completionHandler);
   }
 
+  /**
+   * A single create when the key is absent. When it exists, the current value comes from the cache if it has it, and the
+   * regular CAS loop handles the nodes removed in the meantime and the empty nodes of previous versions.
+   */
+  private Future<V> createIfAbsent(String path, byte[] data) {
+    Future<Void> created = Future.future();
+    flushed(path).setHandler(flush -> create(path, data, created));
+    return created.map((V) null).recover(t -> {
+      if (!(t instanceof KeeperException.NodeExistsException)) {
+        return Future.failedFuture(t);
+      }
+      ChildData cached = options.isCacheData() ? cachedData(path) : null;
+      Future<ChildData> current = cached != null ? Future.succeededFuture(cached) : readDataFromServer(path);
+      return current.compose(this::readValue).compose(currentValue -> currentValue != null ?
+        Future.succeededFuture(currentValue) :
+        compareAndSet(path, node -> {
+          V value = valueOf(node);
+          return value != null ? CasStep.done(value) : CasStep.write(data, null);
+        }));
+    });
+  }
+
   @Override
   public void remove(K k, Handler<AsyncResult<V>> asyncResultHandler) {
-    assertKeyIsNotNull(k).compose(aVoid -> {
+    assertKeyIsNotNull(k).compose(aVoid -> flushed(keyPath(k))).compose(aVoid -> {
       Future<V> future = Future.future();
       get(k, future.completer());
       return future;
     }).compose(value -> {
       Future<V> future = Future.future();
       if (value != null) {
-        return delete(k, value);
+        return coalescer != null ? deleteKey(keyPath(k), value) : delete(k, value);
       } else {
         future.complete();
       }
@@ -181,57 +553,172 @@ public class ZKAsyncMap<K, V> extends ZKMap<K, V> implements AsyncMap<K, V> {
   }
 
   @Override
-  public void removeIfPresent(K k, V v, Handler<AsyncResult<Boolean>> resultHandler) {
+  Future<V> delete(String path, V v) {
+    //the map node and the bucket nodes are kept when they get empty, their caches would stop watching them.
+    return !path.equals(mapPath) ? deleteKey(path, v) : super.delete(path, v);
+  }
+
+  private Future<V> deleteKey(String path, V value) {
+    Future<Void> future = Future.future();
+    if (coalescer != null) {
+      coalescer.delete(path, future.completer());
+    } else {
+      delete(path, -1, future);
+    }
+    return future.map(value).recover(t -> t instanceof KeeperException.NoNodeException ?
+      //removed by someone else in the meantime.
+      Future.succeededFuture() : Future.failedFuture(t));
+  }
+
+  /**
+   * Get the value of the key together with the version of its node.
+   *
+   * @param k             the key
+   * @param resultHandler the value and its version, with a null value and {@link VersionedValue#ABSENT} as version when
+   *                      the key is not in the map
+   */
+  public void getWithVersion(K k, Handler<AsyncResult<VersionedValue<V>>> resultHandler) {
+    assertKeyIsNotNull(k)
+      .compose(aVoid -> currentData(keyPath(k)))
+      .compose(childData -> childData != null ?
+        readValue(childData).map(value -> new VersionedValue<>(value, childData.getStat().getVersion())) :
+        Future.succeededFuture(new VersionedValue<V>(null, VersionedValue.ABSENT)))
+      .setHandler(resultHandler);
+  }
+
+  /**
+   * Put the value only if the node of the key still has the expected version, keeping the ttl of the stored value. The
+   * deadline is stored in the value and Zookeeper replaces the data of a node as a whole, so the data of the expected
+   * version is needed to write its deadline again. A single versioned write when the key is expected to be absent, or
+   * when the data of that version is known locally, from the cache of the map or its near cache. The stored value is
+   * read first otherwise, the read is not conditioned on the version and a node read at another version fails the
+   * write anyway.
+   *
+   * @param k               the key
+   * @param v               the value
+   * @param expectedVersion the version returned by {@link #getWithVersion(Object, Handler)}, or
+   *                        {@link VersionedValue#ABSENT} to put the value only if the key is absent
+   * @param resultHandler   whether the value was put
+   */
+  public void putIfVersion(K k, V v, int expectedVersion, Handler<AsyncResult<Boolean>> resultHandler) {
     assertKeyAndValueAreNotNull(k, v)
       .compose(aVoid -> {
-        Future<V> future = Future.future();
-        get(k, future.completer());
-        return future;
-      })
-      .compose(value -> {
-        Future<Boolean> future = Future.future();
-        if (value.equals(v)) {
-          delete(k, v).setHandler(deleteResult -> {
-            if (deleteResult.succeeded()) future.complete(true);
-            else future.fail(deleteResult.cause());
+        String path = keyPath(k);
+        byte[] update;
+        try {
+          update = asByte(v);
+        } catch (IOException e) {
+          return Future.<Boolean>failedFuture(e);
+        }
+        Future<Void> written = Future.future();
+        if (expectedVersion == VersionedValue.ABSENT) {
+          flushed(path).setHandler(flush -> create(path, update, written));
+        } else {
+          Future<ChildData> current = flushed(path).compose(flush -> {
+            ChildData known = knownData(path, expectedVersion);
+            return known != null ? Future.succeededFuture(known) : readDataFromServer(path);
+          });
+          current.setHandler(ar -> {
+            if (ar.failed()) {
+              written.fail(ar.cause());
+            } else if (ar.result() == null) {
+              written.fail(new KeeperException.NoNodeException(path));
+            } else {
+              //a node read at another version fails the versioned write anyway.
+              setData(path, keepDeadline(update, ar.result()), expectedVersion, written);
+            }
           });
+        }
+        return written.map(true).recover(t -> t instanceof KeeperException.BadVersionException
+          || t instanceof KeeperException.NoNodeException || t instanceof KeeperException.NodeExistsException ?
+          Future.succeededFuture(false) : Future.failedFuture(t));
+      })
+      .setHandler(resultHandler);
+  }
+
+  /**
+   * @return the data of the node at the version, when the cache of the map or its near cache holds it
+   */
+  private ChildData knownData(String path, int version) {
+    ChildData cached = cachedData(path);
+    if (cached == null || cached.getStat().getVersion() != version) {
+      return null;
+    }
+    if (options.isCacheData()) {
+      return cached;
+    }
+    return nearCache != null ? nearCache.get(path, cached.getStat().getMzxid()) : null;
+  }
+
+  /**
+   * Atomically compute the new value of the key from its current value, like {@link Map#compute(Object, BiFunction)}.
+   * Each attempt applies the function and writes the result with a single write conditioned on the version that was
+   * read, the function is applied again if the key was modified in the meantime.
+   *
+   * @param k                 the key
+   * @param remappingFunction computes the new value from the key and the current value, null when absent. Returning
+   *                          null removes the key
+   * @param resultHandler     the new value
+   */
+  public void compute(K k, BiFunction<? super K, ? super V, ? extends V> remappingFunction, Handler<AsyncResult<V>> resultHandler) {
+    assertKeyIsNotNull(k)
+      .compose(aVoid -> compareAndSet(keyPath(k), current -> {
+        V newValue = remappingFunction.apply(k, valueOf(current));
+        return newValue != null ? CasStep.write(keepDeadline(asByte(newValue), current), newValue) : CasStep.<V>delete(null);
+      }))
+      .setHandler(resultHandler);
+  }
+
+  /**
+   * Atomically merge the value into the current value of the key, like {@link Map#merge(Object, Object, BiFunction)}.
+   *
+   * @param k                 the key
+   * @param v                 the value put when the key is absent
+   * @param remappingFunction computes the new value from the current value and the given value. Returning null
+   *                          removes the key
+   * @param resultHandler     the new value
+   */
+  public void merge(K k, V v, BiFunction<? super V, ? super V, ? extends V> remappingFunction, Handler<AsyncResult<V>> resultHandler) {
+    assertValueIsNotNull(v)
+      .setHandler(ar -> {
+        if (ar.failed()) {
+          resultHandler.handle(Future.failedFuture(ar.cause()));
         } else {
-          future.complete(false);
+          compute(k, (key, currentValue) -> currentValue == null ? v : remappingFunction.apply(currentValue, v), resultHandler);
         }
-        return future;
-      }).setHandler(resultHandler);
+      });
+  }
+
+  @Override
+  public void removeIfPresent(K k, V v, Handler<AsyncResult<Boolean>> resultHandler) {
+    assertKeyAndValueAreNotNull(k, v)
+      .compose(aVoid -> {
+        ValueMatcher expected;
+        try {
+          expected = matcher(v);
+        } catch (IOException e) {
+          return Future.failedFuture(e);
+        }
+        return compareAndSet(keyPath(k), current -> expected.matches(current) ? CasStep.delete(true) : CasStep.done(false));
+      })
+      .setHandler(resultHandler);
   }
 
   @Override
   public void replace(K k, V v, Handler<AsyncResult<V>> asyncResultHandler) {
     assertKeyAndValueAreNotNull(k, v)
       .compose(aVoid -> {
-        Future<V> innerFuture = Future.future();
-        vertx.executeBlocking(future -> {
-          long startTime = Instant.now().toEpochMilli();
-          int retries = 0;
-
-          for (; ; ) {
-            try {
-              Stat stat = new Stat();
-              String path = keyPath(k);
-              V currentValue = getData(stat, path);
-              //do not replace value if previous value is null
-              if (currentValue == null) {
-                future.complete(null);
-                return;
-              }
-              if (compareAndSet(startTime, retries++, stat, path, currentValue, v)) {
-                future.complete(currentValue);
-                return;
-              }
-            } catch (Exception e) {
-              future.fail(e);
-              return;
-            }
-          }
-        }, false, innerFuture.completer());
-        return innerFuture;
+        byte[] update;
+        try {
+          update = asByte(v);
+        } catch (IOException e) {
+          return Future.failedFuture(e);
+        }
+        return compareAndSet(keyPath(k), current -> {
+          V currentValue = valueOf(current);
+          //do not replace value if previous value is null
+          return currentValue == null ? CasStep.<V>done(null) : CasStep.write(keepDeadline(update, current), currentValue);
+        });
       })
       .setHandler(asyncResultHandler);
   }
@@ -242,56 +729,126 @@ public class ZKAsyncMap<K, V> extends ZKMap<K, V> implements AsyncMap<K, V> {
       .compose(aVoid -> assertValueIsNotNull(oldValue))
       .compose(aVoid -> assertValueIsNotNull(newValue))
       .compose(aVoid -> {
-        Future<Boolean> innerFuture = Future.future();
-        vertx.executeBlocking(future -> {
-          long startTime = Instant.now().toEpochMilli();
-          int retries = 0;
-
-          for (; ; ) {
-            try {
-              Stat stat = new Stat();
-              String path = keyPath(k);
-              V currentValue = getData(stat, path);
-              if (!currentValue.equals(oldValue)) {
-                future.complete(false);
-                return;
-              }
-              if (compareAndSet(startTime, retries++, stat, path, oldValue, newValue)) {
-                future.complete(true);
-                return;
-              }
-            } catch (Exception e) {
-              future.fail(e);
-              return;
-            }
-          }
-        }, false, innerFuture.completer());
-        return innerFuture;
+        ValueMatcher expected;
+        byte[] update;
+        try {
+          expected = matcher(oldValue);
+          update = asByte(newValue);
+        } catch (IOException e) {
+          return Future.failedFuture(e);
+        }
+        return compareAndSet(keyPath(k), current -> expected.matches(current) ?
+          CasStep.write(keepDeadline(update, current), true) : CasStep.done(false));
       })
       .setHandler(resultHandler);
   }
 
+  /**
+   * An updated value keeps the ttl of the value it replaces, like the pending expiry of the key. A value that is absent
+   * or expired has no ttl to keep.
+   */
+  private static byte[] keepDeadline(byte[] update, ChildData current) {
+    if (current == null || current.getData() == null || isExpired(current)) {
+      return update;
+    }
+    return ValueCodecs.withDeadline(update, ValueCodecs.deadlineOf(current.getData()));
+  }
+
+  /**
+   * Remove the keys in multi transactions, the map node and the bucket nodes stay so that the caches keep watching them.
+   */
   @Override
   public void clear(Handler<AsyncResult<Void>> resultHandler) {
-    //just remove parent node
-    delete(mapPath, null).setHandler(result -> {
-      if (result.succeeded()) {
-        resultHandler.handle(Future.succeededFuture());
-      } else {
-        resultHandler.handle(Future.failedFuture(result.cause()));
+    List<Future<List<String>>> children = new ArrayList<>(parentPaths.length);
+    for (String parentPath : parentPaths) {
+      children.add(children(parentPath));
+    }
+    CompositeFuture.all(new ArrayList<>(children)).compose(all -> {
+      List<BatchOperation> operations = new ArrayList<>();
+      for (int i = 0; i < parentPaths.length; i++) {
+        for (String key : all.<List<String>>resultAt(i)) {
+          operations.add(BatchOperation.delete(parentPaths[i] + "/" + key));
+        }
       }
-    });
+      return commit(operations);
+    }).compose(results -> {
+      for (AsyncResult<Void> result : results) {
+        //keys removed by someone else in the meantime are fine.
+        if (result.failed() && !(result.cause() instanceof KeeperException.NoNodeException)) {
+          return Future.<Void>failedFuture(result.cause());
+        }
+      }
+      return Future.<Void>succeededFuture();
+    }).setHandler(resultHandler);
   }
 
+  /**
+   * The size comes from the cache when it is fresh enough, otherwise from the number of children in the stat of the map
+   * node, or of each bucket node, without listing the keys.
+   */
   @Override
   public void size(Handler<AsyncResult<Integer>> resultHandler) {
+    if (cacheIsFresh()) {
+      int size = 0;
+      for (PathChildrenCache cache : curatorCaches) {
+        size += cache.getCurrentData().size();
+      }
+      resultHandler.handle(Future.succeededFuture(size));
+      return;
+    }
+    Future<Void> synced = options.getConsistency() == ConsistencyLevel.LINEARIZABLE ?
+      sync(mapPath) : Future.succeededFuture();
+    synced.compose(aVoid -> {
+      List<Future<Integer>> counts = new ArrayList<>(parentPaths.length);
+      for (String parentPath : parentPaths) {
+        counts.add(numChildren(parentPath));
+      }
+      return CompositeFuture.all(new ArrayList<>(counts));
+    }).map(all -> {
+      int size = 0;
+      for (int i = 0; i < all.size(); i++) {
+        size += all.<Integer>resultAt(i);
+      }
+      return size;
+    }).setHandler(resultHandler);
+  }
+
+  private Future<Integer> numChildren(String path) {
+    Future<Integer> future = Future.future();
     try {
-      curator.getChildren().inBackground((client, event) ->
-        vertx.runOnContext(aVoid -> resultHandler.handle(Future.succeededFuture(event.getChildren().size()))))
-        .forPath(mapPath);
+      curator.checkExists().inBackground((client, event) -> {
+        int rc = event.getResultCode();
+        if (rc == KeeperException.Code.OK.intValue()) {
+          vertx.runOnContext(aVoid -> future.complete(event.getStat().getNumChildren()));
+        } else if (rc == KeeperException.Code.NONODE.intValue()) {
+          vertx.runOnContext(aVoid -> future.complete(0));
+        } else {
+          vertx.runOnContext(aVoid -> future.fail(KeeperException.create(KeeperException.Code.get(rc), path)));
+        }
+      }).forPath(path);
+    } catch (Exception e) {
+      vertx.runOnContext(aVoid -> future.fail(e));
+    }
+    return future;
+  }
+
+  private Future<List<String>> children(String path) {
+    Future<List<String>> future = Future.future();
+    try {
+      curator.getChildren().inBackground((client, event) -> {
+        int rc = event.getResultCode();
+        if (rc == KeeperException.Code.OK.intValue()) {
+          vertx.runOnContext(aVoid -> future.complete(event.getChildren()));
+        } else if (rc == KeeperException.Code.NONODE.intValue()) {
+          vertx.runOnContext(aVoid -> future.complete(Collections.emptyList()));
+        } else {
+          vertx.runOnContext(aVoid -> future.fail(KeeperException.create(KeeperException.Code.get(rc), path)));
+        }
+      }).forPath(path);
     } catch (Exception e) {
-      resultHandler.handle(Future.failedFuture(e));
+      vertx.runOnContext(aVoid -> future.fail(e));
     }
+    return future;
   }
 
 }
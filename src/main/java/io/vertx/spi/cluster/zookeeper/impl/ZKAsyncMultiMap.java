@@ -30,9 +30,11 @@ import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.framework.recipes.cache.TreeCache;
 import org.apache.curator.framework.recipes.cache.TreeCacheEvent;
 import org.apache.curator.framework.recipes.cache.TreeCacheListener;
+import org.apache.zookeeper.KeeperException;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -41,6 +43,7 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -52,6 +55,10 @@ import static org.apache.curator.framework.recipes.cache.TreeCacheEvent.Type.*;
 public class ZKAsyncMultiMap<K, V> extends ZKMap<K, V> implements AsyncMultiMap<K, V> {
 
   private TreeCache treeCache;
+  private volatile boolean cacheReady;
+  //incremented on every disconnection, a check only marks the cache ready when no disconnection happened meanwhile.
+  private final AtomicInteger disconnections = new AtomicInteger();
+  private volatile boolean closed;
   private ConcurrentMap<String, ChoosableSet<V>> cache = new ConcurrentHashMap<>();
   //we should have a snapshot cache which could make event bus information restore to the zk while node get reconnection event.
   //we come across this issue while internal network is unstable.
@@ -61,13 +68,26 @@ public class ZKAsyncMultiMap<K, V> extends ZKMap<K, V> implements AsyncMultiMap<
   //but we can get STATE from Listener;
   private CountDownLatch startLatch = new CountDownLatch(1);
   private static final Logger logger = LoggerFactory.getLogger(ZKAsyncMultiMap.class);
+  private static final long CACHE_CHECK_INTERVAL = 100;
+  //whether the servers remove the empty key nodes, instead of the node removing the last value of a key.
+  private final boolean containerParents;
 
   public ZKAsyncMultiMap(Vertx vertx, CuratorFramework curator, String mapName) {
-    super(curator, vertx, ZK_PATH_ASYNC_MULTI_MAP, mapName);
+    this(vertx, curator, mapName, ValueCodecs.DEFAULT, ZKMapOptions.DEFAULT);
+  }
+
+  public ZKAsyncMultiMap(Vertx vertx, CuratorFramework curator, String mapName, ValueCodecs codecs,
+                         ZKMapOptions options) {
+    super(curator, vertx, ZK_PATH_ASYNC_MULTI_MAP, mapName, codecs, options);
     treeCache = new TreeCache(curator, mapPath);
     treeCache.getListenable().addListener(new Listener());
 
     try {
+      containerParents = options.isContainerNodes() && ServerFeatures.supportsContainers(curator);
+      if (containerParents) {
+        //only the key nodes are containers, the map node stays to be watched by the cache.
+        ensureMapPath();
+      }
       treeCache.start();
       startLatch.await(1, TimeUnit.SECONDS);
     } catch (Exception e) {
@@ -75,12 +95,80 @@ public class ZKAsyncMultiMap<K, V> extends ZKMap<K, V> implements AsyncMultiMap<
     }
   }
 
+  @Override
+  boolean containerParents() {
+    return containerParents;
+  }
+
+  @Override
+  void closeCaches() {
+    closed = true;
+    treeCache.close();
+  }
+
+  /**
+   * The cache refreshes itself on reconnection without telling when it is done, unless the session was lost. It is only
+   * marked ready again once it has the same keys and values as the server, checked until it does.
+   */
+  private void checkCache(int generation) {
+    vertx.<Boolean>executeBlocking(future -> {
+      try {
+        future.complete(cacheMatchesServer());
+      } catch (Exception e) {
+        future.fail(e);
+      }
+    }, false, ar -> {
+      if (closed || disconnections.get() != generation) {
+        return;
+      }
+      if (ar.succeeded() && ar.result()) {
+        cacheReady = true;
+      } else {
+        vertx.setTimer(CACHE_CHECK_INTERVAL, id -> checkCache(generation));
+      }
+    });
+  }
+
+  /**
+   * Blocking, compares the children of the map node and of its key nodes.
+   */
+  private boolean cacheMatchesServer() throws Exception {
+    List<String> keys = children(mapPath);
+    if (!sameChildren(keys, treeCache.getCurrentChildren(mapPath))) {
+      return false;
+    }
+    for (String key : keys) {
+      String keyPath = mapPath + "/" + key;
+      if (!sameChildren(children(keyPath), treeCache.getCurrentChildren(keyPath))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private List<String> children(String path) throws Exception {
+    try {
+      return curator.getChildren().forPath(path);
+    } catch (KeeperException.NoNodeException e) {
+      return Collections.emptyList();
+    }
+  }
+
+  private static boolean sameChildren(List<String> children, Map<String, ChildData> cached) {
+    return cached == null ? children.isEmpty() : cached.size() == children.size() && cached.keySet().containsAll(children);
+  }
+
+  @Override
+  Boolean cachedExists(String path) {
+    return cacheReady ? treeCache.getCurrentData(path) != null : null;
+  }
+
   @Override
   public void add(K k, V v, Handler<AsyncResult<Void>> completionHandler) {
     String path = valuePath(k, v);
     assertKeyAndValueAreNotNull(k, v)
       .compose(aVoid -> checkExists(path))
-      .compose(checkResult -> checkResult ? setData(path, v) : create(path, v))
+      .compose(checkResult -> createOrSetData(path, v, checkResult))
       .compose(aVoid -> {
         //add to snapshot cache if path contains eventbus address
         if (path.contains(EVENTBUS_PATH)) {
@@ -108,19 +196,25 @@ public class ZKAsyncMultiMap<K, V> extends ZKMap<K, V> implements AsyncMultiMap<
         } else {
           Map<String, ChildData> maps = treeCache.getCurrentChildren(keyPath);
           ChoosableSet<V> newEntries = new ChoosableSet<>(maps != null ? maps.size() : 0);
-          if (maps != null) {
-            for (ChildData childData : maps.values()) {
-              try {
-                if (childData != null && childData.getData() != null && childData.getData().length > 0) {
-                  newEntries.add(asObject(childData.getData()));
-                }
-              } catch (Exception ex) {
-                future.fail(ex);
-              }
+          if (maps == null) {
+            future.complete(newEntries);
+            return future;
+          }
+          List<Future<V>> values = new ArrayList<>();
+          for (ChildData childData : maps.values()) {
+            if (childData != null && childData.getData() != null && childData.getData().length > 0) {
+              values.add(decode(childData));
             }
-            cache.putIfAbsent(keyPath, newEntries);
           }
-          future.complete(newEntries);
+          CompositeFuture.all(new ArrayList<>(values)).setHandler(decoded -> {
+            if (decoded.failed()) {
+              future.fail(decoded.cause());
+              return;
+            }
+            values.forEach(value -> newEntries.add(value.result()));
+            cache.putIfAbsent(keyPath, newEntries);
+            future.complete(newEntries);
+          });
         }
         return future;
       })
@@ -141,17 +235,17 @@ public class ZKAsyncMultiMap<K, V> extends ZKMap<K, V> implements AsyncMultiMap<
     return checkExists(fullPath).compose(checkResult -> {
       Future<Boolean> future = Future.future();
       if (checkResult) {
-        Optional.ofNullable(treeCache.getCurrentData(fullPath))
-          .ifPresent(childData -> delete(fullPath, null).setHandler(deleteResult -> {
-            //delete snapshot cache if keyPath contains event bus address
-            if (keyPath.contains(EVENTBUS_PATH)) {
-              Optional.ofNullable(eventBusSnapshotCache.get(keyPath)).ifPresent(vs -> {
-                vs.remove(v);
-                eventBusSnapshotCache.put(keyPath, vs);
-              });
-            }
-            future.complete(true);
-          }));
+        //the server can know the value before the cache does.
+        delete(fullPath, null).setHandler(deleteResult -> {
+          //delete snapshot cache if keyPath contains event bus address
+          if (keyPath.contains(EVENTBUS_PATH)) {
+            Optional.ofNullable(eventBusSnapshotCache.get(keyPath)).ifPresent(vs -> {
+              vs.remove(v);
+              eventBusSnapshotCache.put(keyPath, vs);
+            });
+          }
+          future.complete(true);
+        });
       } else {
         future.complete(false);
       }
@@ -174,16 +268,8 @@ public class ZKAsyncMultiMap<K, V> extends ZKMap<K, V> implements AsyncMultiMap<
           String fullPath = keyPath + "/" + valuePath;
           Optional.ofNullable(treeCache.getCurrentData(fullPath))
             .filter(childData -> Optional.of(childData.getData()).isPresent())
-            .ifPresent(childData -> {
-              try {
-                V value = asObject(childData.getData());
-                if (p.test(value)) {
-                  futures.add(remove(keyPath, value, fullPath));
-                }
-              } catch (Exception e) {
-                futures.add(Future.failedFuture(e));
-              }
-            });
+            .ifPresent(childData -> futures.add(this.<V>decode(childData).compose(value ->
+              p.test(value) ? remove(keyPath, value, fullPath) : Future.succeededFuture(false))));
         });
       });
       //
@@ -228,6 +314,7 @@ public class ZKAsyncMultiMap<K, V> extends ZKMap<K, V> implements AsyncMultiMap<
     @Override
     public void childEvent(CuratorFramework client, TreeCacheEvent treeCacheEvent) throws Exception {
       if (treeCacheEvent.getType() == INITIALIZED) {
+        cacheReady = true;
         startLatch.countDown();
         return;
       }
@@ -251,10 +338,21 @@ public class ZKAsyncMultiMap<K, V> extends ZKMap<K, V> implements AsyncMultiMap<
       switch (treeCacheEvent.getType()) {
         case NODE_ADDED:
           if (key.length > 1) {
-            entries.add(asObject(childData.getData()));
+            try {
+              entries.add(asObject(childData));
+            } catch (UnknownClassIdException e) {
+              //added once its class is known, unless the value has been removed in the meantime.
+              ChoosableSet<V> addedTo = entries;
+              ZKAsyncMultiMap.this.<V>decode(childData).setHandler(decoded -> {
+                if (decoded.succeeded() && treeCache.getCurrentData(childData.getPath()) != null) {
+                  addedTo.add(decoded.result());
+                }
+              });
+            }
           }
           break;
         case NODE_REMOVED:
+          decodedValues.invalidate(childData.getPath());
           if (key.length == 1) {
             cache.remove(cachePath(key[0]));
           } else {
@@ -277,11 +375,16 @@ public class ZKAsyncMultiMap<K, V> extends ZKMap<K, V> implements AsyncMultiMap<
           break;
         case CONNECTION_SUSPENDED:
           logger.warn("connection to the zookeeper server have suspended.");
+          cacheReady = false;
+          disconnections.incrementAndGet();
           break;
         case CONNECTION_RECONNECTED:
           reconnected.set(true);
+          checkCache(disconnections.get());
           break;
         case CONNECTION_LOST:
+          cacheReady = false;
+          disconnections.incrementAndGet();
           logger.error("connection to the zookeeper server have lost, all the temporary node will be remove.");
           break;
       }
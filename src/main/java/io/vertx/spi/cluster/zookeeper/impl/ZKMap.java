@@ -15,22 +15,28 @@
  */
 package io.vertx.spi.cluster.zookeeper.impl;
 
+import io.vertx.core.AsyncResult;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
 import io.vertx.core.VertxException;
-import io.vertx.core.buffer.Buffer;
-import io.vertx.core.shareddata.impl.ClusterSerializable;
-import org.apache.curator.RetryLoop;
 import org.apache.curator.RetryPolicy;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.api.CuratorEventType;
+import org.apache.curator.framework.api.ProtectACLCreateModePathAndBytesable;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.recipes.cache.ChildData;
 import org.apache.curator.retry.ExponentialBackoffRetry;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
 
-import java.io.*;
-import java.time.Instant;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -42,21 +48,71 @@ abstract class ZKMap<K, V> {
   protected final Vertx vertx;
   final String mapPath;
   protected final String mapName;
+  final ValueCodecs codecs;
+  final ZKMapOptions options;
+  final DecodedValueCache decodedValues;
 
   static final String ZK_PATH_ASYNC_MAP = "asyncMap";
   static final String ZK_PATH_ASYNC_MULTI_MAP = "asyncMultiMap";
   static final String EVENTBUS_PATH = "/" + ZK_PATH_ASYNC_MULTI_MAP + "/__vertx.subs/";
   static final String ZK_PATH_SYNC_MAP = "syncMap";
 
+  //a node can be deleted and created again by other nodes between the create and setData attempts of a write.
+  private static final int MAX_WRITE_ATTEMPTS = 5;
+  //stay well below the 1MB jute.maxbuffer default of the servers.
+  private static final int MAX_TRANSACTION_BYTES = 512 * 1024;
+
   private RetryPolicy retryPolicy = new ExponentialBackoffRetry(100, 5);
+  //releases the instance shared by a registry, null when the map is not shared.
+  private volatile Runnable release;
 
-  ZKMap(CuratorFramework curator, Vertx vertx, String mapType, String mapName) {
+  ZKMap(CuratorFramework curator, Vertx vertx, String mapType, String mapName, ValueCodecs codecs, ZKMapOptions options) {
     this.curator = curator;
     this.vertx = vertx;
     this.mapName = mapName;
+    this.codecs = codecs;
+    this.options = options;
+    //a data-less async map reads values on demand, keeping all their decoded values would make it unbounded again.
+    this.decodedValues = new DecodedValueCache(!ZK_PATH_ASYNC_MAP.equals(mapType) || options.isCacheData(),
+      options.isCacheDecodedValues());
     this.mapPath = "/" + mapType + "/" + mapName;
   }
 
+  void sharedBy(Runnable release) {
+    this.release = release;
+  }
+
+  /**
+   * Close the map. A map shared by the users of its name is only closed by the last of them, each user must close it
+   * once when done with it.
+   */
+  public void close() {
+    Runnable release = this.release;
+    if (release != null) {
+      release.run();
+    } else {
+      closeCaches();
+    }
+  }
+
+  /**
+   * Stop the caches and watches of the map.
+   */
+  void closeCaches() {
+  }
+
+  /**
+   * @return whether the key nodes of the map are container nodes, that the servers remove once they are empty
+   */
+  boolean containerParents() {
+    return false;
+  }
+
+  private ProtectACLCreateModePathAndBytesable<String> createWithParents() {
+    return containerParents() ? curator.create().creatingParentContainersIfNeeded() :
+      curator.create().creatingParentsIfNeeded();
+  }
+
   String keyPath(K k) {
     return mapPath + "/" + k.toString();
   }
@@ -82,122 +138,287 @@ abstract class ZKMap<K, V> {
   }
 
   byte[] asByte(Object object) throws IOException {
-    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-    DataOutput dataOutput = new DataOutputStream(byteOut);
-    if (object instanceof ClusterSerializable) {
-      ClusterSerializable clusterSerializable = (ClusterSerializable) object;
-      dataOutput.writeBoolean(true);
-      dataOutput.writeUTF(object.getClass().getName());
-      Buffer buffer = Buffer.buffer();
-      clusterSerializable.writeToBuffer(buffer);
-      byte[] bytes = buffer.getBytes();
-      dataOutput.writeInt(bytes.length);
-      dataOutput.write(bytes);
-    } else {
-      dataOutput.writeBoolean(false);
-      ByteArrayOutputStream javaByteOut = new ByteArrayOutputStream();
-      ObjectOutput objectOutput = new ObjectOutputStream(javaByteOut);
-      objectOutput.writeObject(object);
-      dataOutput.write(javaByteOut.toByteArray());
-    }
-    return byteOut.toByteArray();
+    return codecs.encode(object);
+  }
+
+  byte[] asByte(Object object, long deadline) throws IOException {
+    return codecs.encode(object, deadline);
   }
 
   <T> T asObject(byte[] bytes) throws Exception {
-    ByteArrayInputStream byteIn = new ByteArrayInputStream(bytes);
-    DataInputStream in = new DataInputStream(byteIn);
-    boolean isClusterSerializable = in.readBoolean();
-    if (isClusterSerializable) {
-      String className = in.readUTF();
-      Class<?> clazz = Thread.currentThread().getContextClassLoader().loadClass(className);
-      int length = in.readInt();
-      byte[] body = new byte[length];
-      in.readFully(body);
-      try {
-        ClusterSerializable clusterSerializable = (ClusterSerializable) clazz.newInstance();
-        clusterSerializable.readFromBuffer(0, Buffer.buffer(body));
-        return (T) clusterSerializable;
-      } catch (Exception e) {
-        throw new IllegalStateException("Failed to load class " + e.getMessage(), e);
-      }
-    } else {
-      byte[] body = new byte[in.available()];
-      in.readFully(body);
-      ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(body));
-      return (T) objectIn.readObject();
+    return codecs.decode(bytes);
+  }
+
+  /**
+   * Decode the data of a node, reusing the value already decoded from the same version of the node when there is one.
+   */
+  @SuppressWarnings("unchecked")
+  <T> T asObject(ChildData childData) throws Exception {
+    Stat stat = childData.getStat();
+    if (stat == null) {
+      return asObject(childData.getData());
+    }
+    DecodedValueCache.Entry entry = decodedValues.get(childData.getPath(), stat.getMzxid());
+    if (entry != null) {
+      return (T) entry.value;
     }
+    T value = asObject(childData.getData());
+    decodedValues.put(childData.getPath(), stat.getMzxid(), value);
+    return value;
   }
 
   /**
-   * get data with Stat
-   *
-   * @param stat new Stat
-   * @param path node path
-   * @param <T>  result
-   * @return T
-   * @throws Exception
+   * @return the value stored in the node, null when there is no node, it holds no value or the value has expired
    */
-  <T> T getData(Stat stat, String path) throws Exception {
-    T result = null;
-    if (null != curator.checkExists().forPath(path)) {
-      result = asObject(curator.getData().storingStatIn(stat).forPath(path));
-    } else {
-      curator.create().creatingParentsIfNeeded().forPath(path, asByte(null));
+  V valueOf(ChildData childData) throws Exception {
+    if (childData == null || childData.getData() == null || childData.getData().length == 0 || isExpired(childData)) {
+      return null;
+    }
+    return asObject(childData);
+  }
+
+  /**
+   * Decode the data of a node like {@link #asObject(ChildData)}, without blocking: the name of a class id that is not
+   * known locally yet is read in the background first.
+   */
+  <T> Future<T> decode(ChildData childData) {
+    try {
+      return Future.succeededFuture(asObject(childData));
+    } catch (UnknownClassIdException e) {
+      return resolve(e).compose(aVoid -> decode(childData));
+    } catch (Exception e) {
+      return Future.failedFuture(e);
+    }
+  }
+
+  /**
+   * {@link #valueOf(ChildData)} without blocking, like {@link #decode(ChildData)}.
+   */
+  Future<V> readValue(ChildData childData) {
+    try {
+      return Future.succeededFuture(valueOf(childData));
+    } catch (UnknownClassIdException e) {
+      return resolve(e).compose(aVoid -> readValue(childData));
+    } catch (Exception e) {
+      return Future.failedFuture(e);
     }
-    return result;
+  }
+
+  Future<Void> resolve(UnknownClassIdException e) {
+    Future<Void> future = Future.future();
+    codecs.resolve(e, ar -> vertx.runOnContext(aVoid -> future.handle(ar)));
+    return future;
+  }
+
+  static boolean isExpired(ChildData childData) {
+    return ValueCodecs.deadlineOf(childData.getData()) <= System.currentTimeMillis();
   }
 
   /**
-   * CAS Operation.
+   * The node of the path, as fresh as the consistency level of the map requires.
    *
-   * @param startTime start time for backOff
-   * @param retries   retry times backOff
-   * @param path      node path
-   * @param expect    the value expect in path.
-   * @param update    the value should be update to the path.
-   * @return boolean
-   * @throws Exception
+   * @return null when the node does not exist
    */
-  boolean compareAndSet(long startTime, int retries, Stat stat, String path, V expect, V update) throws Exception {
-    V currentValue = getData(stat, path);
-    if (currentValue == expect || currentValue.equals(expect)) {
+  Future<ChildData> currentData(String path) {
+    return readData(path);
+  }
+
+  /**
+   * CAS Operation: compute the new data of the node from its current state, and write it only if the node has not been
+   * modified in the meantime, with a versioned setData, or a create when the node does not exist. When another writer
+   * got in first, the node is read again and the function applied again after a backoff delay of the retry policy,
+   * scheduled on a timer so that no thread waits.
+   *
+   * @param path     node path
+   * @param function computes the step of an attempt from the current node, null when the node does not exist
+   * @param <R>      result of the operation
+   * @return the result of the step that completed the operation
+   */
+  <R> Future<R> compareAndSet(String path, CasFunction<R> function) {
+    Future<R> future = Future.future();
+    compareAndSet(path, function, currentData(path), 0, System.currentTimeMillis(), future);
+    return future;
+  }
+
+  private <R> void compareAndSet(String path, CasFunction<R> function, Future<ChildData> read, int retries,
+                                 long startTime, Future<R> future) {
+    read.setHandler(readResult -> {
+      if (readResult.failed()) {
+        future.fail(readResult.cause());
+        return;
+      }
+      ChildData current = readResult.result();
+      CasStep<R> step;
       try {
-        curator.setData().withVersion(stat.getVersion()).forPath(path, asByte(update));
-      } catch (KeeperException.BadVersionException | KeeperException.NoNodeException e) {
-        // If the version has changed, block on the retry policy if necessary. If no more retries are remaining,
-        // fail the operation.
-        if (!retryPolicy.allowRetry(retries, Instant.now().toEpochMilli() - startTime, RetryLoop.getDefaultRetrySleeper())) {
-          throw new VertxException("failed to acquire optimistic lock");
-        }
+        step = function.apply(current);
+      } catch (UnknownClassIdException e) {
+        //the same attempt again, once the class of the current value is known.
+        resolve(e).setHandler(resolved -> {
+          if (resolved.succeeded()) {
+            compareAndSet(path, function, Future.succeededFuture(current), retries, startTime, future);
+          } else {
+            future.fail(resolved.cause());
+          }
+        });
+        return;
+      } catch (Exception e) {
+        future.fail(e);
+        return;
       }
-      return true;
-    } else {
-      return false;
+      if (step.data == null && !step.delete || current == null && step.delete) {
+        future.complete(step.result);
+        return;
+      }
+      Future<Void> written = Future.future();
+      if (step.delete) {
+        delete(path, current.getStat().getVersion(), written);
+      } else if (current == null) {
+        create(path, step.data, written);
+      } else {
+        setData(path, step.data, current.getStat().getVersion(), 1, written);
+      }
+      written.setHandler(writeResult -> {
+        if (writeResult.succeeded()) {
+          future.complete(step.result);
+        } else if (writeResult.cause() instanceof KeeperException.BadVersionException
+          || writeResult.cause() instanceof KeeperException.NoNodeException
+          || writeResult.cause() instanceof KeeperException.NodeExistsException) {
+          long[] delay = {0};
+          // If the node has changed, wait as long as the retry policy says. If no more retries are remaining,
+          // fail the operation.
+          if (retryPolicy.allowRetry(retries, System.currentTimeMillis() - startTime, (time, unit) -> delay[0] = unit.toMillis(time))) {
+            vertx.setTimer(Math.max(1, delay[0]), id -> compareAndSet(path, function, readData(path), retries + 1, startTime, future));
+          } else {
+            future.fail(new VertxException("failed to acquire optimistic lock"));
+          }
+        } else {
+          future.fail(writeResult.cause());
+        }
+      });
+    });
+  }
+
+  /**
+   * The step of a CAS attempt computed from the current node.
+   */
+  @FunctionalInterface
+  interface CasFunction<R> {
+    CasStep<R> apply(ChildData current) throws Exception;
+  }
+
+  static final class CasStep<R> {
+    final byte[] data;
+    final boolean delete;
+    final R result;
+
+    private CasStep(byte[] data, boolean delete, R result) {
+      this.data = data;
+      this.delete = delete;
+      this.result = result;
+    }
+
+    /**
+     * Write the data, the operation completes with the result if the node has not been modified in the meantime.
+     */
+    static <R> CasStep<R> write(byte[] data, R result) {
+      return new CasStep<>(data, false, result);
+    }
+
+    /**
+     * Delete the node, the operation completes with the result if the node has not been modified in the meantime.
+     */
+    static <R> CasStep<R> delete(R result) {
+      return new CasStep<>(null, true, result);
+    }
+
+    /**
+     * Complete the operation with the result, without writing.
+     */
+    static <R> CasStep<R> done(R result) {
+      return new CasStep<>(null, false, result);
     }
   }
 
+  /**
+   * Tells whether a node holds the expected value.
+   */
+  @FunctionalInterface
+  interface ValueMatcher {
+    boolean matches(ChildData current) throws Exception;
+  }
+
+  /**
+   * Match nodes against the expected value: the stored bytes are compared with the encoded expected value when the map
+   * compares bytes, otherwise the stored value is decoded and compared with {@code equals}. Different bytes only tell
+   * the values apart when both have the same canonical encoding, the stored value is decoded in the other cases.
+   */
+  ValueMatcher matcher(V expected) throws IOException {
+    ValueMatcher equalValue = current -> {
+      V currentValue = valueOf(current);
+      return currentValue != null && currentValue.equals(expected);
+    };
+    if (!options.isCompareBytes()) {
+      return equalValue;
+    }
+    byte[] bytes = asByte(expected);
+    int tag = ValueCodecs.tagOf(bytes);
+    boolean canonical = ValueCodecs.isCanonical(tag);
+    return current -> {
+      if (current == null || current.getData() == null || isExpired(current)) {
+        return false;
+      }
+      byte[] data = ValueCodecs.withDeadline(current.getData(), ValueCodecs.NO_DEADLINE);
+      if (Arrays.equals(bytes, data)) {
+        return true;
+      }
+      return !(canonical && ValueCodecs.tagOf(data) == tag) && equalValue.matches(current);
+    };
+  }
+
   Future<Boolean> checkExists(K k) {
     return checkExists(keyPath(k));
   }
 
+  /**
+   * Check if the path exists, as fresh as the consistency level of the map requires.
+   */
   Future<Boolean> checkExists(String path) {
+    switch (options.getConsistency()) {
+      case CACHED:
+        Boolean cached = cachedExists(path);
+        if (cached != null) {
+          return Future.succeededFuture(cached);
+        }
+        return checkExistsOnServer(path);
+      case SESSION_SEQUENTIAL:
+        return checkExistsOnServer(path);
+      default:
+        return syncAndCheckExists(path);
+    }
+  }
+
+  /**
+   * Answer an existence check from the local cache of the map.
+   *
+   * @param path node path
+   * @return null when the map has no cache, or when the cache is not initialized or not connected
+   */
+  Boolean cachedExists(String path) {
+    return null;
+  }
+
+  private Future<Boolean> checkExistsOnServer(String path) {
     Future<Boolean> future = Future.future();
     try {
-      curator.sync().inBackground((clientSync, eventSync) -> {
-        try {
-          if (eventSync.getType() == CuratorEventType.SYNC) {
-            curator.checkExists().inBackground((clientCheck, eventCheck) -> {
-              if (eventCheck.getType() == CuratorEventType.EXISTS) {
-                if (eventCheck.getStat() == null) {
-                  vertx.runOnContext(aVoid -> future.complete(false));
-                } else {
-                  vertx.runOnContext(aVoid -> future.complete(true));
-                }
-              }
-            }).forPath(path);
+      curator.checkExists().inBackground((clientCheck, eventCheck) -> {
+        if (eventCheck.getType() == CuratorEventType.EXISTS) {
+          int rc = eventCheck.getResultCode();
+          if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NONODE.intValue()) {
+            boolean exists = eventCheck.getStat() != null;
+            vertx.runOnContext(aVoid -> future.complete(exists));
+          } else {
+            vertx.runOnContext(aVoid -> future.fail(KeeperException.create(KeeperException.Code.get(rc), path)));
           }
-        } catch (Exception ex) {
-          vertx.runOnContext(aVoid -> future.fail(ex));
         }
       }).forPath(path);
     } catch (Exception ex) {
@@ -206,46 +427,273 @@ abstract class ZKMap<K, V> {
     return future;
   }
 
-  Future<Void> create(K k, V v) {
-    return create(keyPath(k), v);
+  private Future<Boolean> syncAndCheckExists(String path) {
+    Future<Boolean> future = Future.future();
+    try {
+      curator.sync().inBackground((clientSync, eventSync) -> {
+        if (eventSync.getType() == CuratorEventType.SYNC) {
+          checkExistsOnServer(path).setHandler(future.completer());
+        }
+      }).forPath(path);
+    } catch (Exception ex) {
+      vertx.runOnContext(aVoid -> future.fail(ex));
+    }
+    return future;
+  }
+
+  /**
+   * Read the node from the server, synced with the leader first when the map is {@link ConsistencyLevel#LINEARIZABLE}.
+   *
+   * @param path node path
+   * @return the node, or null if it does not exist
+   */
+  Future<ChildData> readData(String path) {
+    if (options.getConsistency() == ConsistencyLevel.LINEARIZABLE) {
+      return sync(path).compose(aVoid -> readDataFromServer(path));
+    }
+    return readDataFromServer(path);
   }
 
-  Future<Void> create(String path, V v) {
+  /**
+   * Sync the server of the session with the leader, reads issued after it observe all the writes completed before.
+   */
+  Future<Void> sync(String path) {
     Future<Void> future = Future.future();
     try {
-      //there are two type of node - ephemeral and persistent.
-      //if path is 'asyncMultiMap/subs/' which save the data of eventbus address and serverID we could using ephemeral,
-      //since the lifecycle of this path as long as this verticle.
-      CreateMode nodeMode = path.contains(EVENTBUS_PATH) ? CreateMode.EPHEMERAL : CreateMode.PERSISTENT;
-      curator.create().creatingParentsIfNeeded().withMode(nodeMode).inBackground((cl, el) -> {
-        if (el.getType() == CuratorEventType.CREATE) {
-          vertx.runOnContext(event -> future.complete());
+      curator.sync().inBackground((clientSync, eventSync) -> {
+        if (eventSync.getType() == CuratorEventType.SYNC) {
+          vertx.runOnContext(aVoid -> future.complete());
         }
-      }).forPath(path, asByte(v));
+      }).forPath(path);
     } catch (Exception ex) {
-      vertx.runOnContext(event -> future.fail(ex));
+      vertx.runOnContext(aVoid -> future.fail(ex));
     }
     return future;
   }
 
-  Future<Void> setData(K k, V v) {
-    return setData(keyPath(k), v);
+  Future<ChildData> readDataFromServer(String path) {
+    Future<ChildData> future = Future.future();
+    try {
+      curator.getData().inBackground((client, event) -> {
+        if (event.getType() == CuratorEventType.GET_DATA) {
+          int rc = event.getResultCode();
+          if (rc == KeeperException.Code.OK.intValue()) {
+            ChildData childData = new ChildData(path, event.getStat(), event.getData());
+            vertx.runOnContext(aVoid -> future.complete(childData));
+          } else if (rc == KeeperException.Code.NONODE.intValue()) {
+            vertx.runOnContext(aVoid -> future.complete());
+          } else {
+            vertx.runOnContext(aVoid -> future.fail(KeeperException.create(KeeperException.Code.get(rc), path)));
+          }
+        }
+      }).forPath(path);
+    } catch (Exception ex) {
+      vertx.runOnContext(aVoid -> future.fail(ex));
+    }
+    return future;
   }
 
-  Future<Void> setData(String path, V v) {
+  /**
+   * Write the value whether the node exists or not, in a single round trip when the hint is right: setData is tried
+   * first when the node is believed to exist, create otherwise, and the other operation is only issued when the first
+   * one fails with NoNode or NodeExists.
+   *
+   * @param exists hint on the existence of the node
+   */
+  Future<Void> createOrSetData(String path, V v, boolean exists) {
+    try {
+      return createOrSetData(path, asByte(v), exists);
+    } catch (IOException e) {
+      return Future.failedFuture(e);
+    }
+  }
+
+  Future<Void> createOrSetData(String path, byte[] data, boolean exists) {
     Future<Void> future = Future.future();
     try {
-      curator.setData().inBackground((client, event) -> {
+      if (exists) {
+        setData(path, data, -1, MAX_WRITE_ATTEMPTS, future);
+      } else {
+        create(path, data, MAX_WRITE_ATTEMPTS, future);
+      }
+    } catch (Exception ex) {
+      vertx.runOnContext(event -> future.fail(ex));
+    }
+    return future;
+  }
+
+  /**
+   * Create the node, failing with NodeExists if it is already there.
+   */
+  void create(String path, byte[] data, Future<Void> future) {
+    create(path, data, 1, future);
+  }
+
+  /**
+   * Set the data of the node, failing with BadVersion if the node does not have the version, or NoNode.
+   */
+  void setData(String path, byte[] data, int version, Future<Void> future) {
+    setData(path, data, version, 1, future);
+  }
+
+  /**
+   * There are two type of node - ephemeral and persistent.
+   * If path is 'asyncMultiMap/subs/' which save the data of eventbus address and serverID we could using ephemeral,
+   * since the lifecycle of this path as long as this verticle.
+   */
+  private static CreateMode createMode(String path) {
+    return path.contains(EVENTBUS_PATH) ? CreateMode.EPHEMERAL : CreateMode.PERSISTENT;
+  }
+
+  private void create(String path, byte[] data, int attempts, Future<Void> future) {
+    try {
+      createWithParents().withMode(createMode(path)).inBackground((cl, el) -> {
+        if (el.getType() == CuratorEventType.CREATE) {
+          int rc = el.getResultCode();
+          if (rc == KeeperException.Code.NODEEXISTS.intValue() && attempts > 1) {
+            setData(path, data, -1, attempts - 1, future);
+          } else {
+            completeWrite(path, rc, future);
+          }
+        }
+      }).forPath(path, data);
+    } catch (Exception ex) {
+      vertx.runOnContext(event -> future.fail(ex));
+    }
+  }
+
+  private void setData(String path, byte[] data, int version, int attempts, Future<Void> future) {
+    try {
+      curator.setData().withVersion(version).inBackground((client, event) -> {
         if (event.getType() == CuratorEventType.SET_DATA) {
-          vertx.runOnContext(e -> future.complete());
+          int rc = event.getResultCode();
+          if (rc == KeeperException.Code.NONODE.intValue() && attempts > 1) {
+            create(path, data, attempts - 1, future);
+          } else {
+            completeWrite(path, rc, future);
+          }
+        }
+      }).forPath(path, data);
+    } catch (Exception ex) {
+      vertx.runOnContext(event -> future.fail(ex));
+    }
+  }
+
+  void delete(String path, int version, Future<Void> future) {
+    try {
+      curator.delete().withVersion(version).inBackground((client, event) -> {
+        if (event.getType() == CuratorEventType.DELETE) {
+          completeWrite(path, event.getResultCode(), future);
         }
-      }).forPath(path, asByte(v));
+      }).forPath(path);
     } catch (Exception ex) {
       vertx.runOnContext(event -> future.fail(ex));
     }
+  }
+
+  private void completeWrite(String path, int rc, Future<Void> future) {
+    if (rc == KeeperException.Code.OK.intValue()) {
+      vertx.runOnContext(event -> future.complete());
+    } else {
+      vertx.runOnContext(event -> future.fail(KeeperException.create(KeeperException.Code.get(rc), path)));
+    }
+  }
+
+  /**
+   * Commit the operations in multi transactions of at most {@link ZKMapOptions#getBatchSize()} operations. When a
+   * transaction fails none of its operations is applied, they are then applied one by one so that each operation gets
+   * its own result.
+   *
+   * @return the result of each operation, in the same order
+   */
+  Future<List<AsyncResult<Void>>> commit(List<BatchOperation> operations) {
+    Future<List<AsyncResult<Void>>> future = Future.future();
+    vertx.<List<AsyncResult<Void>>>executeBlocking(f -> {
+      try {
+        if (operations.stream().anyMatch(operation -> operation.type != BatchOperation.Type.DELETE)) {
+          ensureMapPath();
+        }
+      } catch (Exception e) {
+        f.fail(e);
+        return;
+      }
+      List<AsyncResult<Void>> results = new ArrayList<>(operations.size());
+      int from = 0;
+      while (from < operations.size()) {
+        int to = from;
+        int bytes = 0;
+        while (to < operations.size() && to - from < options.getBatchSize()
+          && (to == from || bytes + operations.get(to).size() <= MAX_TRANSACTION_BYTES)) {
+          bytes += operations.get(to++).size();
+        }
+        results.addAll(commitTransaction(operations.subList(from, to)));
+        from = to;
+      }
+      f.complete(results);
+    }, false, future.completer());
     return future;
   }
 
+  void ensureMapPath() throws Exception {
+    if (curator.checkExists().forPath(mapPath) == null) {
+      try {
+        curator.create().creatingParentsIfNeeded().forPath(mapPath);
+      } catch (KeeperException.NodeExistsException e) {
+        //created by another node in the meantime.
+      }
+    }
+  }
+
+  private List<AsyncResult<Void>> commitTransaction(List<BatchOperation> operations) {
+    try {
+      CuratorTransaction transaction = curator.inTransaction();
+      for (BatchOperation operation : operations) {
+        switch (operation.type) {
+          case CREATE:
+            transaction = transaction.create().withMode(createMode(operation.path)).forPath(operation.path, operation.data).and();
+            break;
+          case SET_DATA:
+            transaction = transaction.setData().forPath(operation.path, operation.data).and();
+            break;
+          default:
+            transaction = transaction.delete().forPath(operation.path).and();
+        }
+      }
+      ((CuratorTransactionFinal) transaction).commit();
+      return Collections.nCopies(operations.size(), Future.succeededFuture());
+    } catch (Exception e) {
+      return operations.stream().map(this::apply).collect(Collectors.toList());
+    }
+  }
+
+  private AsyncResult<Void> apply(BatchOperation operation) {
+    try {
+      if (operation.type == BatchOperation.Type.DELETE) {
+        curator.delete().forPath(operation.path);
+      } else {
+        boolean create = operation.type == BatchOperation.Type.CREATE;
+        for (int attempts = MAX_WRITE_ATTEMPTS; ; attempts--) {
+          try {
+            if (create) {
+              createWithParents().withMode(createMode(operation.path)).forPath(operation.path, operation.data);
+            } else {
+              curator.setData().forPath(operation.path, operation.data);
+            }
+            break;
+          } catch (KeeperException.NodeExistsException | KeeperException.NoNodeException e) {
+            if (attempts == 1) {
+              throw e;
+            }
+            create = !create;
+          }
+        }
+      }
+      return Future.succeededFuture();
+    } catch (Exception e) {
+      return Future.failedFuture(e);
+    }
+  }
+
   Future<V> delete(K k, V v) {
     return delete(keyPath(k), v);
   }
@@ -255,6 +703,10 @@ abstract class ZKMap<K, V> {
     try {
       curator.delete().deletingChildrenIfNeeded().inBackground((client, event) -> {
         if (event.getType() == CuratorEventType.DELETE) {
+          if (containerParents()) {
+            vertx.runOnContext(ea -> future.complete(v));
+            return;
+          }
           //clean parent node if doesn't have child node.
           String[] paths = path.split("/");
           String parentNodePath = Stream.of(paths).limit(paths.length - 1).reduce((previous, current) -> previous + "/" + current).get();
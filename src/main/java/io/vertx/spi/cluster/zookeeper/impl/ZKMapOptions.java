@@ -0,0 +1,161 @@
+/*
+ *  Copyright (c) 2011-2016 The original author or authors
+ *  ------------------------------------------------------
+ *  All rights reserved. This program and the accompanying materials
+ *  are made available under the terms of the Eclipse Public License v1.0
+ *  and Apache License v2.0 which accompanies this distribution.
+ *
+ *       The Eclipse Public License is available at
+ *       http://www.eclipse.org/legal/epl-v10.html
+ *
+ *       The Apache License v2.0 is available at
+ *       http://www.opensource.org/licenses/apache2.0.php
+ *
+ *  You may elect to redistribute this code under either of these licenses.
+ */
+package io.vertx.spi.cluster.zookeeper.impl;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * Options of a single cluster map, read from the {@code maps.<name>} object of the cluster manager configuration.
+ * <p>
+ * Created by Stream.Liu
+ */
+public class ZKMapOptions {
+
+  public static final ZKMapOptions DEFAULT = new ZKMapOptions(new JsonObject());
+
+  private final ConsistencyLevel consistency;
+  private final long maxStaleness;
+  private final boolean cacheDecodedValues;
+  private final int batchSize;
+  private final long coalesceWindow;
+  private final boolean compareBytes;
+  private final int buckets;
+  private final boolean cacheData;
+  private final int valueCacheSize;
+  private final long valueCacheMaxBytes;
+  private final EvictionPolicy valueCacheEviction;
+  private final long valueCacheTtl;
+  private final boolean containerNodes;
+
+  public ZKMapOptions(JsonObject config) {
+    this.consistency = ConsistencyLevel.fromConfig(config.getString("consistency", "linearizable"));
+    this.maxStaleness = config.getLong("maxStaleness", -1L);
+    this.cacheDecodedValues = config.getBoolean("cacheDecodedValues", false);
+    this.batchSize = config.getInteger("batchSize", 100);
+    this.coalesceWindow = config.getLong("coalesceWindow", 0L);
+    this.compareBytes = config.getBoolean("compareBytes", false);
+    this.buckets = config.getInteger("buckets", 0);
+    this.cacheData = config.getBoolean("cacheData", true);
+    this.valueCacheSize = config.getInteger("valueCacheSize", 0);
+    this.valueCacheMaxBytes = config.getLong("valueCacheMaxBytes", 0L);
+    this.valueCacheEviction = EvictionPolicy.fromConfig(config.getString("valueCacheEviction", "lru"));
+    this.valueCacheTtl = config.getLong("valueCacheTtl", 0L);
+    this.containerNodes = config.getBoolean("containerNodes", false);
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize must be positive, not " + batchSize + ".");
+    }
+    if (buckets < 0) {
+      throw new IllegalArgumentException("buckets must not be negative, not " + buckets + ".");
+    }
+  }
+
+  public ConsistencyLevel getConsistency() {
+    return consistency;
+  }
+
+  /**
+   * @return how long in milliseconds a {@link ConsistencyLevel#CACHED} map answers from its cache without having heard
+   * from the server, or -1 for no limit
+   */
+  public long getMaxStaleness() {
+    return maxStaleness;
+  }
+
+  /**
+   * @return whether every decoded value is kept and shared between reads, and not only strings and boxed primitives.
+   * An async map without {@link #isCacheData() cached data} keeps no decoded value
+   */
+  public boolean isCacheDecodedValues() {
+    return cacheDecodedValues;
+  }
+
+  /**
+   * @return the maximum number of operations committed in one multi transaction by the batch operations of the map
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @return how long in milliseconds the writes of the map are collected before being committed together, 0 when
+   * every write is sent on its own
+   */
+  public long getCoalesceWindow() {
+    return coalesceWindow;
+  }
+
+  /**
+   * @return whether the conditional operations compare the encoded values instead of decoding the stored value and
+   * calling {@code equals}. The stored value is still decoded when the bytes differ, unless both values are strings,
+   * buffers or primitives
+   */
+  public boolean isCompareBytes() {
+    return compareBytes;
+  }
+
+  /**
+   * @return the number of hash buckets the keys of an async map are spread over, 0 when all the keys are children of
+   * the map node
+   */
+  public int getBuckets() {
+    return buckets;
+  }
+
+  /**
+   * @return whether the cache of an async map holds the values of the map, or only the names and stats of its keys
+   */
+  public boolean isCacheData() {
+    return cacheData;
+  }
+
+  /**
+   * @return the maximum number of values kept by the near cache of an async map without cached data, 0 for no limit.
+   * The near cache is only used when this size or {@link #getValueCacheMaxBytes()} is set, and the map has the
+   * {@link ConsistencyLevel#CACHED} consistency. It is disabled with a warning otherwise
+   */
+  public int getValueCacheSize() {
+    return valueCacheSize;
+  }
+
+  /**
+   * @return the maximum number of bytes of the values kept by the near cache, 0 for no limit
+   */
+  public long getValueCacheMaxBytes() {
+    return valueCacheMaxBytes;
+  }
+
+  /**
+   * @return which value the near cache drops first when it is full
+   */
+  public EvictionPolicy getValueCacheEviction() {
+    return valueCacheEviction;
+  }
+
+  /**
+   * @return how long in milliseconds a value stays in the near cache, 0 until it is evicted or modified
+   */
+  public long getValueCacheTtl() {
+    return valueCacheTtl;
+  }
+
+  /**
+   * @return whether the key nodes of a multimap are created as container nodes, removed by the servers once empty, when
+   * both the Zookeeper client and the ensemble support them
+   */
+  public boolean isContainerNodes() {
+    return containerNodes;
+  }
+}
@@ -20,6 +20,7 @@ import io.vertx.core.VertxException;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 
 import java.io.Serializable;
 import java.util.Collection;
@@ -33,27 +34,44 @@ import java.util.stream.Collectors;
 public class ZKSyncMap<K, V> extends ZKMap<K, V> implements Map<K, V> {
 
   public ZKSyncMap(CuratorFramework curator, String mapName) {
-    super(curator, null, ZK_PATH_SYNC_MAP, mapName);
+    this(curator, mapName, ValueCodecs.DEFAULT);
   }
 
+  public ZKSyncMap(CuratorFramework curator, String mapName, ValueCodecs codecs) {
+    super(curator, null, ZK_PATH_SYNC_MAP, mapName, codecs, ZKMapOptions.DEFAULT);
+  }
+
+  /**
+   * The sync map blocks on zookeeper in all its operations, the name of an unknown class id is read in place.
+   */
   @Override
-  public int size() {
+  <T> T asObject(byte[] bytes) throws Exception {
     try {
-      return curator.getChildren().forPath(mapPath).size();
-    } catch (Exception e) {
-      throw new VertxException(e);
+      return super.asObject(bytes);
+    } catch (UnknownClassIdException e) {
+      codecs.load(e);
+      return super.asObject(bytes);
     }
   }
 
+  /**
+   * The number of children is read from the stat of the map node, the keys are not listed.
+   */
   @Override
-  public boolean isEmpty() {
+  public int size() {
     try {
-      return curator.getChildren().forPath(mapPath).isEmpty();
+      Stat stat = curator.checkExists().forPath(mapPath);
+      return stat == null ? 0 : stat.getNumChildren();
     } catch (Exception e) {
       throw new VertxException(e);
     }
   }
 
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
   @Override
   public boolean containsKey(Object key) {
     try {
@@ -188,7 +206,7 @@ public class ZKSyncMap<K, V> extends ZKMap<K, V> implements Map<K, V> {
     private K key;
     private V value;
 
-    private KeyValue(K key, V value) {
+    KeyValue(K key, V value) {
       this.key = key;
       this.value = value;
     }
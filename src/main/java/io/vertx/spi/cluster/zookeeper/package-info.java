@@ -55,6 +55,8 @@
  * `/io.vertx/asyncMultiMap/$name/` record all the `AsyncMultiMap` you created with `io.vertx.core.spi.cluster.AsyncMultiMap` interface.
  * `/io.vertx/locks/` record distributed Locks information.
  * `/io.vertx/counters/` record distributed Count information.
+ * `/io.vertx/classIds/` record the ids given to `ClusterSerializable` classes stored in the maps, each node loads and
+ * watches them when it joins the cluster so that reading a value never waits for Zookeeper.
  * 
  * == Using this cluster manager
  * 
@@ -142,8 +144,145 @@
  * java.util.logging.FileHandler.level=INFO
  * ----
  * 
+ * == Value encoding
+ *
+ * Values of the cluster maps are stored with a one byte tag followed by the encoded value. `String`, `Buffer`,
+ * `JsonObject`, `JsonArray`, boxed primitives and server ids have built-in compact codecs, other `ClusterSerializable`
+ * values use their own serialization and anything else falls back to Java serialization. The class of a
+ * `ClusterSerializable` value is recorded once in Zookeeper and values only carry its numeric id.
+ *
+ * You can register your own `ValueCodec` for the values of a given map, on every node of the cluster and before the
+ * map is used:
+ *
+ * [source,java]
+ * ----
+ * {@link example.Examples#example4()}
+ * ----
+ *
+ * Versions of this cluster manager before the tagged encoding only read values written with Java serialization or with
+ * the `ClusterSerializable` layout, including the event bus subscriptions (`__vertx.subs`) and the HA information. To
+ * upgrade a running cluster one node at a time, set `legacyEncoding` to `true` at the top level of the configuration of
+ * the upgraded nodes: they read every layout but keep writing the previous ones, without class ids nor registered codecs.
+ * Once all the nodes are upgraded, restart them without it. Values put with a ttl carry a header the previous versions
+ * cannot read whatever the option, do not use ttls until the upgrade is complete. It defaults to `false`.
+ *
+ * == Map options
+ *
+ * Each cluster map can be tuned in the `maps` object of the configuration, keyed by the name of the map:
+ *
+ * [source,json]
+ * ----
+ * "maps" : {
+ *   "sessions" : {
+ *     "consistency" : "cached"
+ *   }
+ * }
+ * ----
+ *
+ * `consistency` sets how fresh the reads of the map are:
+ *
+ * * `linearizable` (default): reads sync with the Zookeeper leader first and observe every write completed before them.
+ * * `session-sequential`: reads are served by the Zookeeper server the node is connected to. They observe the writes of
+ * the node in order, but can lag behind the writes of other nodes.
+ * * `cached`: reads are answered by the local cache of the map while it is connected, and by the connected server
+ * otherwise. After a reconnection the cache is rebuilt before it answers again. `get` then needs no network round
+ * trip at all, but reads can miss recent writes of other nodes.
+ *
+ * With the `cached` consistency, `maxStaleness` bounds in milliseconds how long the cache is trusted without having heard
+ * from Zookeeper: when the last event received by the cache, or the last read from the server, is older than that, the
+ * next read goes to the server. It defaults to `-1`, no bound.
+ *
+ * Decoded strings and boxed primitives are kept and reused as long as their node is not modified. With
+ * `cacheDecodedValues` set to `true` every decoded value is kept, the same instance is then returned to all the readers
+ * of a key: only enable it when the values of the map are never modified.
+ *
+ * `batchSize` sets the maximum number of operations sent in a single Zookeeper transaction by the batch operations
+ * described below, it must be positive and defaults to `100`.
+ *
+ * `coalesceWindow` makes the `put` and `remove` operations of the map wait up to that many milliseconds for other
+ * writes, and commits them together in one transaction, or as soon as `batchSize` writes are waiting. It trades a little
+ * latency for a much higher write throughput when many writes happen at the same time. The writes of a key are still
+ * applied in order: the operations that read a key before writing it (`remove`, `putIfAbsent`, `replace`,
+ * `replaceIfPresent`, `removeIfPresent`, `putIfVersion`, `compute`, `merge`) and the batch operations `putAll` and
+ * `removeAll` commit the writes of their keys waiting in the window first. It defaults to `0`, every write is sent on
+ * its own.
+ *
+ * `compareBytes` makes `replaceIfPresent` and `removeIfPresent` compare the encoded expected value with the stored bytes
+ * instead of decoding the stored value and calling `equals`. Different bytes are only trusted for strings, buffers and
+ * primitives. Other values, e.g. `JsonObject` values built with fields in different orders or `ClusterSerializable`
+ * values written with a class name by one node and a class id by another, are still decoded when the bytes differ.
+ * It defaults to `false`.
+ *
+ * `buckets` spreads the keys of an asynchronous map over that many bucket nodes, `/asyncMap/<name>/<bucket>/<key>`,
+ * chosen by the hash of the key. Zookeeper lists the children of a node in a single response, so a map with hundreds of
+ * thousands of keys under one node makes the cache slow to build, and can exceed the maximum response size
+ * (`jute.maxbuffer`). With buckets every bucket has its own cache and `size` adds the sizes of the buckets. All the nodes
+ * of the cluster must use the same number of buckets for a map. It defaults to `0`, all the keys being children of the map node.
+ *
+ * `cacheData` set to `false` makes the cache of an asynchronous map hold only the names and stats of the keys, and not
+ * their values. The values are then read from Zookeeper when they are needed, so a node that only uses a few keys of a
+ * large map does not keep the whole map in memory. Such a map does not keep decoded values either, whatever
+ * `cacheDecodedValues`. It defaults to `true`.
+ *
+ * Such a map can keep the values it reads in a near cache, bounded by a number of values with `valueCacheSize` and/or a
+ * number of bytes with `valueCacheMaxBytes`. The near cache is enabled when one of them is set, both default to `0`.
+ * It answers the reads the cache of the map answers, so it needs the `cached` consistency: a map with another
+ * consistency reads its values from Zookeeper and logs a warning that its near cache is disabled.
+ * When it is full it drops the least recently read value, or the least frequently read one with `valueCacheEviction` set
+ * to `lfu` instead of the default `lru`. A value is dropped as soon as the watches of the map report that its key was
+ * modified or removed, and `valueCacheTtl` also drops the values cached for longer than that many milliseconds. The hit,
+ * miss, eviction and invalidation counters are returned by `ZKAsyncMap.nearCacheStats()`.
+ *
+ * The cluster manager shares a single instance of each asynchronous map and multimap name, with a single cache and a
+ * single set of watches, however many times the map is retrieved. Each retrieval takes a reference that can be released
+ * with `close()`, the cache of the map is closed when the last reference is released or when the node leaves the
+ * cluster.
+ *
+ * == Batch operations
+ *
+ * The asynchronous maps returned by the cluster manager also support `putAll`, `getAll` and `removeAll`. Writes are
+ * committed in Zookeeper multi transactions of at most `batchSize` operations, reads are all sent at once. The result
+ * of each key is reported separately:
+ *
+ * [source,java]
+ * ----
+ * {@link example.Examples#example5(io.vertx.spi.cluster.zookeeper.ZookeeperClusterManager, java.util.Map)}
+ * ----
+ *
+ * == Versioned operations
+ *
+ * The asynchronous maps also expose the version of the Zookeeper node of each key for optimistic concurrency, without
+ * taking a cluster wide lock:
+ *
+ * * `getWithVersion` returns the value of a key together with its `VersionedValue` version.
+ * * `putIfVersion` puts a value only if the key still has the expected version, `VersionedValue.ABSENT` for a key that
+ * must not exist yet. It keeps the ttl of the stored value, which lives in the value itself: the write is a single
+ * versioned round trip when the cache of the map, or its near cache, holds the value at that version, e.g. right after
+ * `getWithVersion` on a `cached` map, and the stored value is read first otherwise.
+ * * `compute` and `merge` atomically update a key from its current value, like their `java.util.Map` counterparts. The
+ * function is applied again when another node modified the key in the meantime.
+ *
+ * == Entries with a ttl
+ *
+ * The deadline of a value put with a ttl is stored in a small header in front of the value, so that an expired value is
+ * treated as absent by every read even before it is removed, including reads answered by the local cache. Expired keys
+ * are removed by a single node of the cluster, elected through Zookeeper. Only the puts with a ttl send a message, to
+ * that node only, and the deadlines of a node are batched in a single binary message every 100 milliseconds. The keys
+ * with a ttl are recorded under `/ttl/keys` by the node that puts them, before the value is written, and the elected
+ * node sweeps these keys, and only them, when it gets elected and every 5 minutes, for expired values whose ttl it did
+ * not receive, e.g. when the node that put them left before sending it. The updates of a key, `replace`,
+ * `replaceIfPresent`, `putIfVersion`, `compute` and `merge`, keep the ttl of the value they update, only `put` and
+ * `putIfAbsent` set a new one. `size` counts the expired keys that are not removed yet. The nodes of the cluster should
+ * have synchronized clocks.
+ *
  * == About Zookeeper version
  * We use Curator ${curator.version}, as Zookeeper latest stable is 3.4.8 so we do not support any features of 3.5.x
+ *
+ * The only exception is the `containerNodes` map option. Set to `true` for a multimap, it creates the key nodes as
+ * container nodes when both the Zookeeper client on the classpath and the ensemble are 3.5 or later, the servers then
+ * remove the keys whose last value was removed, including the keys of the event bus subscriptions of a node that crashed.
+ * Otherwise the map logs it and keeps removing the empty keys itself. The nodes with a ttl of Zookeeper 3.5 cannot be
+ * created with Curator ${curator.version}, the entries with a ttl are always expired by the cluster manager.
  */
 
 
@@ -0,0 +1,164 @@
+package io.vertx.spi.cluster.zookeeper;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.shareddata.AsyncMap;
+import io.vertx.spi.cluster.zookeeper.impl.AsyncMapTTLMonitor;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.test.Timing;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * The expiry of the keys put with a ttl by the nodes of a cluster, through the elected expirer.
+ */
+public class AsyncMapTTLMonitorTest {
+
+  private final Timing timing = new Timing();
+  private TestingServer server;
+  private CuratorFramework curator;
+  private final List<CuratorFramework> nodeCurators = new ArrayList<>();
+  private final List<Vertx> nodes = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    server = new TestingServer();
+    curator = newCurator();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (Vertx node : nodes) {
+      close(node);
+    }
+    nodeCurators.forEach(CuratorFramework::close);
+    curator.close();
+    server.close();
+  }
+
+  private CuratorFramework newCurator() {
+    CuratorFramework curator = CuratorFrameworkFactory.builder()
+      .namespace("io.vertx")
+      .sessionTimeoutMs(timing.session())
+      .connectionTimeoutMs(timing.connection())
+      .connectString(server.getConnectString())
+      .retryPolicy(new ExponentialBackoffRetry(100, 3))
+      .build();
+    curator.start();
+    return curator;
+  }
+
+  private Vertx clusteredVertx() throws Exception {
+    CuratorFramework nodeCurator = newCurator();
+    nodeCurators.add(nodeCurator);
+    VertxOptions options = new VertxOptions().setClusterManager(new ZookeeperClusterManager(nodeCurator))
+      .setClusterHost("localhost");
+    Vertx node = this.<Vertx>await(h -> Vertx.clusteredVertx(options, h));
+    nodes.add(node);
+    return node;
+  }
+
+  private void close(Vertx node) throws Exception {
+    CompletableFuture<Void> closed = new CompletableFuture<>();
+    node.close(ar -> closed.complete(null));
+    closed.get(timing.forWaiting().seconds(), TimeUnit.SECONDS);
+  }
+
+  private <T> T await(Consumer<Handler<AsyncResult<T>>> operation) throws Exception {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    operation.accept(ar -> {
+      if (ar.succeeded()) {
+        future.complete(ar.result());
+      } else {
+        future.completeExceptionally(ar.cause());
+      }
+    });
+    return future.get(timing.forWaiting().seconds(), TimeUnit.SECONDS);
+  }
+
+  private boolean await(String path, boolean exists) throws Exception {
+    long deadline = System.currentTimeMillis() + timing.forWaiting().milliseconds();
+    while ((curator.checkExists().forPath(path) != null) != exists && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    return (curator.checkExists().forPath(path) != null) == exists;
+  }
+
+  @Test
+  public void followerSendsItsDeadlinesToTheExpirer() throws Exception {
+    Vertx leader = clusteredVertx();
+    AsyncMap<String, String> leaderMap = this.<AsyncMap<String, String>>await(h ->
+      leader.sharedData().getClusterWideMap("ttl", h));
+    //the first monitor is elected and publishes its address.
+    assertTrue(await("/ttl/expirer", true));
+
+    Vertx follower = clusteredVertx();
+    AsyncMap<String, String> followerMap = this.<AsyncMap<String, String>>await(h ->
+      follower.sharedData().getClusterWideMap("ttl", h));
+    for (int i = 0; i < 10; i++) {
+      String k = "key-" + i;
+      this.<Void>await(h -> followerMap.put(k, "value", 200, h));
+    }
+    for (int i = 0; i < 10; i++) {
+      assertTrue(await("/asyncMap/ttl/key-" + i, false));
+      assertTrue(await(AsyncMapTTLMonitor.indexPath("/asyncMap/ttl/key-" + i), false));
+    }
+    String k = "key-0";
+    assertNull(this.<String>await(h -> leaderMap.get(k, h)));
+  }
+
+  @Test
+  public void keysAreRecordedByTheirWriter() throws Exception {
+    Vertx leader = clusteredVertx();
+    this.<AsyncMap<String, String>>await(h -> leader.sharedData().getClusterWideMap("ttl", h));
+    assertTrue(await("/ttl/expirer", true));
+    Vertx follower = clusteredVertx();
+    AsyncMap<String, String> followerMap = this.<AsyncMap<String, String>>await(h ->
+      follower.sharedData().getClusterWideMap("ttl", h));
+
+    //the deadlines sent to a stale address are lost, the key is recorded for the sweep anyway.
+    curator.setData().forPath("/ttl/expirer", "stale".getBytes(StandardCharsets.UTF_8));
+    Thread.sleep(500);
+    this.<Void>await(h -> followerMap.put("key", "value", 60000, h));
+    assertTrue(await(AsyncMapTTLMonitor.indexPath("/asyncMap/ttl/key"), true));
+  }
+
+  @Test
+  public void pendingDeadlinesSurviveALeaderChange() throws Exception {
+    Vertx leader = clusteredVertx();
+    this.<AsyncMap<String, String>>await(h -> leader.sharedData().getClusterWideMap("ttl", h));
+    assertTrue(await("/ttl/expirer", true));
+    Vertx follower = clusteredVertx();
+    AsyncMap<String, String> followerMap = this.<AsyncMap<String, String>>await(h ->
+      follower.sharedData().getClusterWideMap("ttl", h));
+
+    long ttl = 2000;
+    long putAt = System.currentTimeMillis();
+    this.<Void>await(h -> followerMap.put("key", "value", ttl, h));
+    //the deadline reached the elected node, that leaves before it expires.
+    assertTrue(await(AsyncMapTTLMonitor.indexPath("/asyncMap/ttl/key"), true));
+    close(leader);
+    nodes.remove(leader);
+    assertTrue(System.currentTimeMillis() - putAt < ttl);
+    assertNotNull(curator.checkExists().forPath("/asyncMap/ttl/key"));
+
+    //the follower gets elected, and finds the deadline in the recorded keys.
+    assertTrue(await("/asyncMap/ttl/key", false));
+    assertTrue(System.currentTimeMillis() - putAt >= ttl);
+  }
+}
@@ -0,0 +1,66 @@
+package io.vertx.spi.cluster.zookeeper;
+
+import io.vertx.spi.cluster.zookeeper.impl.TimingWheel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class TimingWheelTest {
+
+  @Test
+  public void expireAtTheDeadline() {
+    TimingWheel wheel = new TimingWheel(100, 0);
+    wheel.schedule("a", 250);
+    wheel.schedule("b", 1000);
+    assertEquals(Collections.emptyList(), wheel.advance(200));
+    assertEquals(Collections.singletonList("a"), wheel.advance(300));
+    assertEquals(Collections.emptyList(), wheel.advance(900));
+    assertEquals(Collections.singletonList("b"), wheel.advance(1000));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void pastDeadlinesExpireOnTheNextAdvance() {
+    TimingWheel wheel = new TimingWheel(100, 1000);
+    wheel.schedule("a", 500);
+    assertEquals(Collections.singletonList("a"), wheel.advance(1000));
+  }
+
+  @Test
+  public void cancelAndReschedule() {
+    TimingWheel wheel = new TimingWheel(100, 0);
+    wheel.schedule("a", 200);
+    wheel.schedule("b", 200);
+    wheel.cancel("a");
+    wheel.schedule("b", 500);
+    assertEquals(Collections.emptyList(), wheel.advance(400));
+    assertEquals(Collections.singletonList("b"), wheel.advance(500));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void deadlinesOfEveryLevel() {
+    TimingWheel wheel = new TimingWheel(10, 0);
+    //from the first level to beyond the last one.
+    List<Long> deadlines = Arrays.asList(15L, 640L, 5_000L, 41_000L, 2_700_000L, 200_000_000L);
+    for (long deadline : deadlines) {
+      wheel.schedule("key-" + deadline, deadline);
+    }
+    List<String> expired = new ArrayList<>();
+    for (long deadline : deadlines) {
+      assertEquals(Collections.emptyList(), wheel.advance(deadline - 1));
+      List<String> keys = wheel.advance(deadline + 9);
+      assertEquals(Collections.singletonList("key-" + deadline), keys);
+      expired.addAll(keys);
+    }
+    assertEquals(deadlines.size(), expired.size());
+  }
+}
@@ -0,0 +1,276 @@
+package io.vertx.spi.cluster.zookeeper;
+
+import io.vertx.core.VertxException;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.impl.ServerID;
+import io.vertx.core.shareddata.impl.ClusterSerializable;
+import io.vertx.spi.cluster.zookeeper.impl.ClassIdRegistry;
+import io.vertx.spi.cluster.zookeeper.impl.ValueCodecs;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.test.Timing;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class ValueCodecsTest {
+
+  private final ValueCodecs codecs = ValueCodecs.DEFAULT;
+
+  private <T> T roundTrip(ValueCodecs codecs, T value) throws Exception {
+    return codecs.decode(codecs.encode(value));
+  }
+
+  @Test
+  public void builtInCodecs() throws Exception {
+    for (Object value : Arrays.asList("hello", 'c', (byte) 1, (short) 2, 3, 4L, 5.0f, 6.0d, true,
+      new JsonObject().put("foo", "bar"), new JsonArray().add(1).add("two"), new ServerID(1234, "localhost"))) {
+      assertEquals(value, roundTrip(codecs, value));
+    }
+    assertEquals(Buffer.buffer("bytes"), roundTrip(codecs, Buffer.buffer("bytes")));
+    assertNull(roundTrip(codecs, null));
+  }
+
+  @Test
+  public void builtInCodecsAreCompact() throws Exception {
+    assertEquals(1 + 5, codecs.encode("hello").length);
+    assertEquals(1 + 4, codecs.encode(42).length);
+    assertEquals(1 + 4 + 9, codecs.encode(new ServerID(1234, "localhost")).length);
+  }
+
+  @Test
+  public void javaSerializationFallback() throws Exception {
+    Date date = new Date();
+    assertEquals(date, roundTrip(codecs, date));
+  }
+
+  @Test
+  public void clusterSerializable() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      Counted value = roundTrip(codecs, new Counted(i));
+      assertEquals(i, value.count);
+    }
+  }
+
+  @Test
+  public void clusterSerializableWithClassId() throws Exception {
+    Timing timing = new Timing();
+    try (TestingServer server = new TestingServer();
+         CuratorFramework curator = CuratorFrameworkFactory.newClient(server.getConnectString(), timing.session(),
+           timing.connection(), new ExponentialBackoffRetry(100, 3));
+         CuratorFramework otherCurator = CuratorFrameworkFactory.newClient(server.getConnectString(), timing.session(),
+           timing.connection(), new ExponentialBackoffRetry(100, 3))) {
+      curator.start();
+      otherCurator.start();
+      ValueCodecs codecs = new ValueCodecs(Collections.emptyList(), new ClassIdRegistry(curator));
+      //a node started before the id is allocated learns it from its watch.
+      ClassIdRegistry watching = new ClassIdRegistry(otherCurator);
+      watching.start();
+
+      //the first value is written with the class name while the id gets registered.
+      byte[] withName = codecs.encode(new Counted(1));
+      byte[] withId = withName;
+      long deadline = System.currentTimeMillis() + timing.forWaiting().milliseconds();
+      while (withId.length == withName.length && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+        withId = codecs.encode(new Counted(1));
+      }
+      assertTrue(withId.length < withName.length);
+
+      ValueCodecs watchingCodecs = new ValueCodecs(Collections.emptyList(), watching);
+      assertEquals(1, watchingCodecs.<Counted>decode(withName).count);
+      deadline = System.currentTimeMillis() + timing.forWaiting().milliseconds();
+      Counted decoded = null;
+      while (decoded == null && System.currentTimeMillis() < deadline) {
+        try {
+          decoded = watchingCodecs.decode(withId);
+        } catch (VertxException e) {
+          Thread.sleep(10);
+        }
+      }
+      assertNotNull(decoded);
+      assertEquals(1, decoded.count);
+      watching.close();
+
+      //a node started afterwards loads the ids when it starts.
+      ClassIdRegistry loading = new ClassIdRegistry(otherCurator);
+      loading.start();
+      assertEquals(1, new ValueCodecs(Collections.emptyList(), loading).<Counted>decode(withId).count);
+      loading.close();
+
+      //decoding never reads the id from zookeeper, the maps resolve it in the background.
+      try {
+        new ValueCodecs(Collections.emptyList(), new ClassIdRegistry(otherCurator)).decode(withId);
+        fail();
+      } catch (VertxException e) {
+        assertTrue(e.getMessage().startsWith("Unknown class id"));
+      }
+    }
+  }
+
+  @Test
+  public void readPreviousJavaSerializationLayout() throws Exception {
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    DataOutputStream dataOutput = new DataOutputStream(byteOut);
+    dataOutput.writeBoolean(false);
+    ByteArrayOutputStream javaByteOut = new ByteArrayOutputStream();
+    ObjectOutputStream objectOutput = new ObjectOutputStream(javaByteOut);
+    objectOutput.writeObject("legacy");
+    objectOutput.flush();
+    dataOutput.write(javaByteOut.toByteArray());
+    assertEquals("legacy", codecs.decode(byteOut.toByteArray()));
+  }
+
+  @Test
+  public void legacyEncodingWritesThePreviousLayouts() throws Exception {
+    ValueCodecs legacyCodecs = new ValueCodecs(Collections.singletonList(new PointCodec()), null, true);
+    for (Object value : Arrays.asList("legacy", 42, new ServerID(1234, "localhost"), new JsonObject().put("foo", "bar"),
+      new Counted(1), new Point(1, 2), null)) {
+      byte[] bytes = legacyCodecs.encode(value);
+      assertArrayEquals(previousLayout(value), bytes);
+      assertEquals(value, codecs.decode(bytes));
+    }
+  }
+
+  /**
+   * The layout written by the previous versions, Java serialization unless the value is {@code ClusterSerializable}.
+   */
+  private static byte[] previousLayout(Object value) throws Exception {
+    ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+    DataOutputStream dataOutput = new DataOutputStream(byteOut);
+    if (value instanceof ClusterSerializable) {
+      dataOutput.writeBoolean(true);
+      dataOutput.writeUTF(value.getClass().getName());
+      Buffer buffer = Buffer.buffer();
+      ((ClusterSerializable) value).writeToBuffer(buffer);
+      dataOutput.writeInt(buffer.length());
+      dataOutput.write(buffer.getBytes());
+    } else {
+      dataOutput.writeBoolean(false);
+      ByteArrayOutputStream javaByteOut = new ByteArrayOutputStream();
+      ObjectOutputStream objectOutput = new ObjectOutputStream(javaByteOut);
+      objectOutput.writeObject(value);
+      objectOutput.flush();
+      dataOutput.write(javaByteOut.toByteArray());
+    }
+    return byteOut.toByteArray();
+  }
+
+  @Test
+  public void deadlineHeader() throws Exception {
+    byte[] withDeadline = codecs.encode("hello", 1234L);
+    assertEquals(1 + 8 + 1 + 5, withDeadline.length);
+    assertEquals(1234L, ValueCodecs.deadlineOf(withDeadline));
+    assertEquals("hello", codecs.decode(withDeadline));
+    assertEquals(ValueCodecs.NO_DEADLINE, ValueCodecs.deadlineOf(codecs.encode("hello")));
+    assertArrayEquals(codecs.encode("hello"), codecs.encode("hello", ValueCodecs.NO_DEADLINE));
+  }
+
+  @Test
+  public void userCodec() throws Exception {
+    ValueCodecs userCodecs = new ValueCodecs(Collections.singletonList(new PointCodec()), null);
+    byte[] bytes = userCodecs.encode(new Point(1, 2));
+    assertEquals(ValueCodec.MIN_USER_TAG, bytes[0]);
+    assertEquals(9, bytes.length);
+    assertEquals(new Point(1, 2), userCodecs.decode(bytes));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void userCodecCannotUseReservedTag() {
+    new ValueCodecs(Collections.singletonList(new PointCodec() {
+      @Override
+      public int tag() {
+        return 3;
+      }
+    }), null);
+  }
+
+  public static class Counted implements ClusterSerializable {
+    int count;
+
+    public Counted() {
+    }
+
+    Counted(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public void writeToBuffer(Buffer buffer) {
+      buffer.appendInt(count);
+    }
+
+    @Override
+    public int readFromBuffer(int pos, Buffer buffer) {
+      count = buffer.getInt(pos);
+      return pos + 4;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Counted && ((Counted) o).count == count;
+    }
+
+    @Override
+    public int hashCode() {
+      return count;
+    }
+  }
+
+  static class Point implements Serializable {
+    final int x;
+    final int y;
+
+    Point(int x, int y) {
+      this.x = x;
+      this.y = y;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Point && ((Point) o).x == x && ((Point) o).y == y;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * x + y;
+    }
+  }
+
+  static class PointCodec implements ValueCodec<Point> {
+    @Override
+    public int tag() {
+      return MIN_USER_TAG;
+    }
+
+    @Override
+    public Class<Point> type() {
+      return Point.class;
+    }
+
+    @Override
+    public void encode(Point value, Buffer buffer) {
+      buffer.appendInt(value.x).appendInt(value.y);
+    }
+
+    @Override
+    public Point decode(Buffer buffer) {
+      return new Point(buffer.getInt(0), buffer.getInt(4));
+    }
+  }
+}
@@ -0,0 +1,869 @@
+package io.vertx.spi.cluster.zookeeper;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.spi.cluster.zookeeper.impl.AsyncMapTTLMonitor;
+import io.vertx.spi.cluster.zookeeper.impl.ClassIdRegistry;
+import io.vertx.spi.cluster.zookeeper.impl.ConsistencyLevel;
+import io.vertx.spi.cluster.zookeeper.impl.MapRegistry;
+import io.vertx.spi.cluster.zookeeper.impl.ValueCodecs;
+import io.vertx.spi.cluster.zookeeper.impl.ZKAsyncMap;
+import io.vertx.spi.cluster.zookeeper.impl.ZKAsyncMultiMap;
+import io.vertx.spi.cluster.zookeeper.impl.ZKMapOptions;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.retry.ExponentialBackoffRetry;
+import org.apache.curator.test.InstanceSpec;
+import org.apache.curator.test.TestingCluster;
+import org.apache.curator.test.TestingServer;
+import org.apache.curator.test.Timing;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class ZKAsyncMapTest {
+
+  private final Timing timing = new Timing();
+  private TestingServer server;
+  private CuratorFramework curator;
+  private Vertx vertx;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new TestingServer();
+    curator = newCurator(server.getConnectString(), 3);
+    vertx = Vertx.vertx();
+  }
+
+  private CuratorFramework newCurator(String connectString, int retries) {
+    CuratorFramework curator = CuratorFrameworkFactory.builder()
+      .namespace("io.vertx")
+      .sessionTimeoutMs(timing.session())
+      .connectionTimeoutMs(timing.connection())
+      .connectString(connectString)
+      .retryPolicy(new ExponentialBackoffRetry(100, retries))
+      .build();
+    curator.start();
+    return curator;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    CompletableFuture<Void> closed = new CompletableFuture<>();
+    vertx.close(ar -> closed.complete(null));
+    closed.get(timing.forWaiting().seconds(), TimeUnit.SECONDS);
+    curator.close();
+    server.close();
+  }
+
+  private <K, V> ZKAsyncMap<K, V> asyncMap(String name, JsonObject options) {
+    return new ZKAsyncMap<>(vertx, curator, null, name, ValueCodecs.DEFAULT, new ZKMapOptions(options));
+  }
+
+  private <T> T await(Consumer<Handler<AsyncResult<T>>> operation) throws Exception {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    operation.accept(ar -> {
+      if (ar.succeeded()) {
+        future.complete(ar.result());
+      } else {
+        future.completeExceptionally(ar.cause());
+      }
+    });
+    return future.get(timing.forWaiting().seconds(), TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void consistencyOption() {
+    assertEquals(ConsistencyLevel.LINEARIZABLE, ZKMapOptions.DEFAULT.getConsistency());
+    assertEquals(ConsistencyLevel.SESSION_SEQUENTIAL,
+      new ZKMapOptions(new JsonObject().put("consistency", "session-sequential")).getConsistency());
+    assertEquals(ConsistencyLevel.CACHED, new ZKMapOptions(new JsonObject().put("consistency", "cached")).getConsistency());
+    //the dotted capital i of the turkish locale is not an enum name.
+    Locale locale = Locale.getDefault();
+    Locale.setDefault(new Locale("tr", "TR"));
+    try {
+      assertEquals(ConsistencyLevel.LINEARIZABLE,
+        new ZKMapOptions(new JsonObject().put("consistency", "linearizable")).getConsistency());
+    } finally {
+      Locale.setDefault(locale);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void batchSizeMustBePositive() {
+    new ZKMapOptions(new JsonObject().put("batchSize", 0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void bucketsMustNotBeNegative() {
+    new ZKMapOptions(new JsonObject().put("buckets", -1));
+  }
+
+  @Test
+  public void readsAtEveryConsistencyLevel() throws Exception {
+    for (String consistency : new String[]{"linearizable", "session-sequential", "cached"}) {
+      readAndWrite(asyncMap("map-" + consistency, new JsonObject().put("consistency", consistency)));
+    }
+  }
+
+  @Test
+  public void cachedReadsFallBackToServerWhenStale() throws Exception {
+    assertEquals(-1, ZKMapOptions.DEFAULT.getMaxStaleness());
+    //every read is older than the cache, get always goes to the server.
+    readAndWrite(asyncMap("stale", new JsonObject().put("consistency", "cached").put("maxStaleness", 0)));
+
+    //the write of another client is read at the latest once the cache is older than the max staleness.
+    long maxStaleness = 100;
+    ZKAsyncMap<String, String> map = asyncMap("behind", new JsonObject().put("consistency", "cached")
+      .put("maxStaleness", maxStaleness));
+    this.<Void>await(h -> map.put("foo", "old", h));
+    assertEquals("old", awaitValue(map, "foo"));
+    CuratorFramework other = newCurator(server.getConnectString(), 3);
+    try {
+      other.setData().forPath("/asyncMap/behind/foo", ValueCodecs.DEFAULT.encode("new"));
+    } finally {
+      other.close();
+    }
+    Thread.sleep(maxStaleness);
+    assertEquals("new", this.<String>await(h -> map.get("foo", h)));
+  }
+
+  @Test
+  public void cacheIsUsedOnceRebuiltAfterAReconnection() throws Exception {
+    try (TestingCluster cluster = new TestingCluster(3)) {
+      cluster.start();
+      Iterator<InstanceSpec> instances = cluster.getInstances().iterator();
+      InstanceSpec mapServer = instances.next();
+      //each client only knows one server, the client of the map cannot reconnect elsewhere.
+      CuratorFramework mapCurator = newCurator(mapServer.getConnectString(), 10);
+      CuratorFramework other = newCurator(instances.next().getConnectString(), 10);
+      try {
+        ZKAsyncMap<String, String> map = new ZKAsyncMap<>(vertx, mapCurator, null, "reconnected", ValueCodecs.DEFAULT,
+          new ZKMapOptions(new JsonObject().put("consistency", "cached")));
+        //the caches of the buckets are rebuilt together, once.
+        ZKAsyncMap<String, String> bucketed = new ZKAsyncMap<>(vertx, mapCurator, null, "reconnected-buckets",
+          ValueCodecs.DEFAULT, new ZKMapOptions(new JsonObject().put("consistency", "cached").put("buckets", 8)));
+        this.<Void>await(h -> map.put("foo", "old", h));
+        this.<Void>await(h -> bucketed.put("foo", "old", h));
+        assertEquals("old", awaitValue(map, "foo"));
+        assertEquals("old", awaitValue(bucketed, "foo"));
+        CountDownLatch reconnected = new CountDownLatch(1);
+        mapCurator.getConnectionStateListenable().addListener((client, state) -> {
+          if (state == ConnectionState.RECONNECTED) {
+            reconnected.countDown();
+          }
+        });
+
+        cluster.killServer(mapServer);
+        other.setData().forPath("/asyncMap/reconnected/foo", ValueCodecs.DEFAULT.encode("new"));
+        other.setData().forPath("/asyncMap/reconnected-buckets/" + Integer.toHexString(Math.floorMod("foo".hashCode(), 8))
+          + "/foo", ValueCodecs.DEFAULT.encode("new"));
+        cluster.restartServer(mapServer);
+        assertTrue(reconnected.await(timing.forWaiting().seconds(), TimeUnit.SECONDS));
+        //the cache missed the write while disconnected, it is not used before it has been rebuilt.
+        for (int i = 0; i < 10; i++) {
+          assertEquals("new", this.<String>await(h -> map.get("foo", h)));
+          assertEquals("new", this.<String>await(h -> bucketed.get("foo", h)));
+          Thread.sleep(10);
+        }
+        map.close();
+        bucketed.close();
+      } finally {
+        mapCurator.close();
+        other.close();
+      }
+    }
+  }
+
+  @Test
+  public void multiMapCacheIsUsedOnceCheckedAfterAReconnection() throws Exception {
+    try (TestingCluster cluster = new TestingCluster(3)) {
+      cluster.start();
+      Iterator<InstanceSpec> instances = cluster.getInstances().iterator();
+      InstanceSpec mapServer = instances.next();
+      CuratorFramework mapCurator = newCurator(mapServer.getConnectString(), 10);
+      CuratorFramework other = newCurator(instances.next().getConnectString(), 10);
+      try {
+        ZKAsyncMultiMap<String, String> multiMap = new ZKAsyncMultiMap<>(vertx, mapCurator, "reconnected",
+          ValueCodecs.DEFAULT, new ZKMapOptions(new JsonObject().put("consistency", "cached")));
+        this.<Void>await(h -> multiMap.add("key", "removed", h));
+        this.<Void>await(h -> multiMap.add("key", "kept", h));
+        CountDownLatch reconnected = new CountDownLatch(1);
+        mapCurator.getConnectionStateListenable().addListener((client, state) -> {
+          if (state == ConnectionState.RECONNECTED) {
+            reconnected.countDown();
+          }
+        });
+
+        cluster.killServer(mapServer);
+        other.delete().forPath("/asyncMultiMap/reconnected/key/removed");
+        other.create().forPath("/asyncMultiMap/reconnected/key/added", ValueCodecs.DEFAULT.encode("added"));
+        cluster.restartServer(mapServer);
+        assertTrue(reconnected.await(timing.forWaiting().seconds(), TimeUnit.SECONDS));
+        //the cache missed the changes while disconnected, the server answers until it has caught up.
+        assertFalse(this.<Boolean>await(h -> multiMap.remove("key", "removed", h)));
+        assertTrue(this.<Boolean>await(h -> multiMap.remove("key", "added", h)));
+        assertTrue(this.<Boolean>await(h -> multiMap.remove("key", "kept", h)));
+        multiMap.close();
+      } finally {
+        mapCurator.close();
+        other.close();
+      }
+    }
+  }
+
+  @Test
+  public void decodedValuesAreReusedUntilTheNodeChanges() throws Exception {
+    ZKAsyncMap<String, JsonObject> map = asyncMap("decoded", new JsonObject());
+    this.<Void>await(h -> map.put("foo", new JsonObject().put("v", 1), h));
+    assertNotSame(this.<JsonObject>await(h -> map.get("foo", h)), this.<JsonObject>await(h -> map.get("foo", h)));
+
+    ZKAsyncMap<String, JsonObject> cachingMap = asyncMap("decoded", new JsonObject().put("cacheDecodedValues", true));
+    JsonObject value = this.await(h -> cachingMap.get("foo", h));
+    assertSame(value, this.<JsonObject>await(h -> cachingMap.get("foo", h)));
+
+    this.<Void>await(h -> cachingMap.put("foo", new JsonObject().put("v", 2), h));
+    assertEquals(new JsonObject().put("v", 2), this.<JsonObject>await(h -> cachingMap.get("foo", h)));
+
+    //a data-less map keeps no decoded value, its near cache bounds what it keeps.
+    ZKAsyncMap<String, JsonObject> datalessMap = asyncMap("decoded", new JsonObject().put("cacheDecodedValues", true)
+      .put("cacheData", false).put("consistency", "cached").put("valueCacheSize", 10));
+    assertNotSame(this.<JsonObject>await(h -> datalessMap.get("foo", h)), this.<JsonObject>await(h -> datalessMap.get("foo", h)));
+  }
+
+  @Test
+  public void batchOperations() throws Exception {
+    ZKAsyncMap<String, Integer> map = asyncMap("batch", new JsonObject().put("batchSize", 100));
+    this.<Void>await(h -> map.put("key-0", -1, h));
+    Map<String, Integer> entries = new LinkedHashMap<>();
+    for (int i = 0; i < 250; i++) {
+      entries.put("key-" + i, i);
+    }
+    Map<String, AsyncResult<Void>> put = this.await(h -> map.putAll(entries, h));
+    assertEquals(entries.keySet(), put.keySet());
+    put.values().forEach(result -> assertTrue(result.succeeded()));
+
+    List<String> keys = new ArrayList<>(entries.keySet());
+    keys.add("missing");
+    Map<String, AsyncResult<Integer>> values = this.await(h -> map.getAll(keys, h));
+    entries.forEach((k, v) -> assertEquals(v, values.get(k).result()));
+    assertNull(values.get("missing").result());
+
+    Map<String, AsyncResult<Integer>> removed = this.await(h -> map.removeAll(keys, h));
+    entries.forEach((k, v) -> assertEquals(v, removed.get(k).result()));
+    assertNull(removed.get("missing").result());
+    this.<Map<String, AsyncResult<Integer>>>await(h -> map.getAll(keys, h))
+      .values().forEach(result -> assertNull(result.result()));
+  }
+
+  @Test
+  public void coalescedWrites() throws Exception {
+    ZKAsyncMap<String, Integer> map = asyncMap("coalesced", new JsonObject().put("coalesceWindow", 5).put("batchSize", 10));
+    Context context = vertx.getOrCreateContext();
+    CountDownLatch latch = new CountDownLatch(50);
+    List<Throwable> failures = new CopyOnWriteArrayList<>();
+    context.runOnContext(v -> {
+      //writes of the same keys in a row, the last one must win.
+      for (int i = 0; i < 50; i++) {
+        map.put("key-" + i % 5, i, ar -> {
+          if (ar.failed()) {
+            failures.add(ar.cause());
+          } else if (Vertx.currentContext() != context) {
+            failures.add(new AssertionError("Not completed on the context of the caller"));
+          }
+          latch.countDown();
+        });
+      }
+    });
+    assertTrue(latch.await(timing.forWaiting().seconds(), TimeUnit.SECONDS));
+    assertEquals(Collections.emptyList(), failures);
+    for (int i = 0; i < 5; i++) {
+      int k = i;
+      assertEquals(Integer.valueOf(45 + k), this.<Integer>await(h -> map.get("key-" + k, h)));
+    }
+    assertEquals(Integer.valueOf(45), this.<Integer>await(h -> map.remove("key-0", h)));
+    assertNull(this.<Integer>await(h -> map.get("key-0", h)));
+  }
+
+  @Test
+  public void conditionalOperationsAfterCoalescedWrites() throws Exception {
+    long window = 2000;
+    ZKAsyncMap<String, Integer> map = asyncMap("coalesced-conditional", new JsonObject().put("coalesceWindow", window));
+    Context context = vertx.getOrCreateContext();
+    CompletableFuture<List<Object>> results = new CompletableFuture<>();
+    long start = System.currentTimeMillis();
+    context.runOnContext(v -> {
+      //the conditional operations see the writes queued before them, without waiting for the window.
+      List<Object> list = new CopyOnWriteArrayList<>();
+      map.put("key", 1, put -> list.add("put"));
+      map.putIfAbsent("key", 2, ar -> {
+        list.add(ar.result());
+        map.put("key", 3, put -> list.add("put"));
+        map.replaceIfPresent("key", 3, 4, replaced -> {
+          list.add(replaced.result());
+          map.put("other", 5, put -> list.add("put"));
+          map.putIfVersion("other", 6, VersionedValue.ABSENT, created -> {
+            list.add(created.result());
+            results.complete(list);
+          });
+        });
+      });
+    });
+    assertEquals(Arrays.asList("put", 1, "put", true, "put", false),
+      results.get(timing.forWaiting().seconds(), TimeUnit.SECONDS));
+    assertTrue(System.currentTimeMillis() - start < window);
+    assertEquals(Integer.valueOf(4), this.<Integer>await(h -> map.get("key", h)));
+    assertEquals(Integer.valueOf(5), this.<Integer>await(h -> map.get("other", h)));
+  }
+
+  @Test
+  public void removesAndBatchesAfterCoalescedWrites() throws Exception {
+    ZKAsyncMap<String, Integer> map = asyncMap("coalesced-batches", new JsonObject().put("coalesceWindow", 500));
+    Context context = vertx.getOrCreateContext();
+    CompletableFuture<List<Object>> results = new CompletableFuture<>();
+    context.runOnContext(v -> {
+      //the writes queued before a remove or a batch operation are applied before it.
+      List<Object> list = new CopyOnWriteArrayList<>();
+      map.put("removed", 1, put -> list.add("put"));
+      map.remove("removed", removed -> {
+        list.add(removed.result());
+        map.put("batch-removed", 2, put -> list.add("put"));
+        map.removeAll(Collections.singletonList("batch-removed"), batchRemoved -> {
+          list.add(batchRemoved.result().get("batch-removed").result());
+          map.put("batch-put", 3, put -> list.add("put"));
+          map.putAll(Collections.singletonMap("batch-put", 4), batchPut -> {
+            list.add(batchPut.result().get("batch-put").succeeded());
+            results.complete(list);
+          });
+        });
+      });
+    });
+    assertEquals(Arrays.asList("put", 1, "put", 2, "put", true),
+      results.get(timing.forWaiting().seconds(), TimeUnit.SECONDS));
+    assertNull(this.<Integer>await(h -> map.get("removed", h)));
+    assertNull(this.<Integer>await(h -> map.get("batch-removed", h)));
+    assertEquals(Integer.valueOf(4), this.<Integer>await(h -> map.get("batch-put", h)));
+  }
+
+  @Test
+  public void concurrentCompareAndSet() throws Exception {
+    ZKAsyncMap<String, Integer> map = asyncMap("cas", new JsonObject());
+    CountDownLatch latch = new CountDownLatch(10);
+    List<Integer> previous = new CopyOnWriteArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      int value = i;
+      vertx.runOnContext(v -> map.putIfAbsent("key", value, ar -> {
+        previous.add(ar.succeeded() ? ar.result() : Integer.valueOf(-1));
+        latch.countDown();
+      }));
+    }
+    assertTrue(latch.await(timing.forWaiting().seconds(), TimeUnit.SECONDS));
+    Integer winner = this.await(h -> map.get("key", h));
+    assertEquals(1, previous.stream().filter(value -> value == null).count());
+    assertEquals(9, previous.stream().filter(winner::equals).count());
+
+    assertFalse(this.<Boolean>await(h -> map.replaceIfPresent("key", winner + 1, 100, h)));
+    assertTrue(this.<Boolean>await(h -> map.replaceIfPresent("key", winner, 100, h)));
+    assertEquals(Integer.valueOf(100), this.<Integer>await(h -> map.replace("key", 101, h)));
+    assertNull(this.<Integer>await(h -> map.replace("missing", 1, h)));
+    assertNull(this.<Integer>await(h -> map.get("missing", h)));
+  }
+
+  @Test
+  public void putIfAbsentOverEmptyNode() throws Exception {
+    ZKAsyncMap<String, String> map = asyncMap("claims", new JsonObject());
+    //previous versions created an empty node when reading a missing key.
+    curator.create().creatingParentsIfNeeded().forPath("/asyncMap/claims/key", ValueCodecs.DEFAULT.encode(null));
+    assertNull(this.<String>await(h -> map.putIfAbsent("key", "first", h)));
+    assertEquals("first", this.<String>await(h -> map.putIfAbsent("key", "second", h)));
+    assertEquals("first", this.<String>await(h -> map.get("key", h)));
+  }
+
+  @Test
+  public void conditionalOperations() throws Exception {
+    for (boolean compareBytes : new boolean[]{false, true}) {
+      ZKAsyncMap<String, JsonObject> map = asyncMap("conditional-" + compareBytes, new JsonObject().put("compareBytes", compareBytes));
+      JsonObject first = new JsonObject().put("v", 1);
+      JsonObject second = new JsonObject().put("v", 2);
+      assertFalse(this.<Boolean>await(h -> map.removeIfPresent("key", first, h)));
+      assertFalse(this.<Boolean>await(h -> map.replaceIfPresent("key", first, second, h)));
+      this.<Void>await(h -> map.put("key", first, h));
+      assertFalse(this.<Boolean>await(h -> map.replaceIfPresent("key", second, first, h)));
+      assertTrue(this.<Boolean>await(h -> map.replaceIfPresent("key", first.copy(), second, h)));
+      assertFalse(this.<Boolean>await(h -> map.removeIfPresent("key", first, h)));
+      assertTrue(this.<Boolean>await(h -> map.removeIfPresent("key", second.copy(), h)));
+      assertNull(this.<JsonObject>await(h -> map.get("key", h)));
+
+      //equal objects whose fields are encoded in another order.
+      this.<Void>await(h -> map.put("key", new JsonObject().put("a", 1).put("b", 2), h));
+      assertTrue(this.<Boolean>await(h -> map.removeIfPresent("key", new JsonObject().put("b", 2).put("a", 1), h)));
+    }
+  }
+
+  @Test
+  public void conditionalOperationsAcrossEncodings() throws Exception {
+    JsonObject options = new JsonObject().put("compareBytes", true);
+    ValueCodecs withIds = new ValueCodecs(Collections.emptyList(), new ClassIdRegistry(curator));
+    ZKAsyncMap<String, ValueCodecsTest.Counted> idMap = new ZKAsyncMap<>(vertx, curator, null, "encodings", withIds,
+      new ZKMapOptions(options));
+    ZKAsyncMap<String, ValueCodecsTest.Counted> nameMap = asyncMap("encodings", options);
+    //the first value is written with the class name while the id gets registered.
+    int nameLength = ValueCodecs.DEFAULT.encode(new ValueCodecsTest.Counted(0)).length;
+    long deadline = System.currentTimeMillis() + timing.forWaiting().milliseconds();
+    while (withIds.encode(new ValueCodecsTest.Counted(0)).length == nameLength && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    //a value written with the class name matches the value encoded with the class id.
+    this.<Void>await(h -> nameMap.put("key", new ValueCodecsTest.Counted(1), h));
+    assertFalse(this.<Boolean>await(h -> idMap.replaceIfPresent("key", new ValueCodecsTest.Counted(2),
+      new ValueCodecsTest.Counted(3), h)));
+    assertTrue(this.<Boolean>await(h -> idMap.replaceIfPresent("key", new ValueCodecsTest.Counted(1),
+      new ValueCodecsTest.Counted(2), h)));
+
+    //a node that has not learnt the id yet writes the class name, and matches the value written with the id.
+    ZKAsyncMap<String, ValueCodecsTest.Counted> otherMap = new ZKAsyncMap<>(vertx, curator, null, "encodings",
+      new ValueCodecs(Collections.emptyList(), new ClassIdRegistry(curator)), new ZKMapOptions(options));
+    assertTrue(this.<Boolean>await(h -> otherMap.removeIfPresent("key", new ValueCodecsTest.Counted(2), h)));
+    assertNull(this.<ValueCodecsTest.Counted>await(h -> nameMap.get("key", h)));
+  }
+
+  @Test
+  public void unknownClassIdsAreResolvedInTheBackground() throws Exception {
+    ValueCodecs withIds = new ValueCodecs(Collections.emptyList(), new ClassIdRegistry(curator));
+    ZKAsyncMap<String, ValueCodecsTest.Counted> idMap = new ZKAsyncMap<>(vertx, curator, null, "resolved", withIds,
+      ZKMapOptions.DEFAULT);
+    int nameLength = ValueCodecs.DEFAULT.encode(new ValueCodecsTest.Counted(0)).length;
+    long deadline = System.currentTimeMillis() + timing.forWaiting().milliseconds();
+    while (withIds.encode(new ValueCodecsTest.Counted(0)).length == nameLength && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    this.<Void>await(h -> idMap.put("key", new ValueCodecsTest.Counted(1), h));
+
+    //the registry of this map knows no id, reading the value does not block on zookeeper.
+    ZKAsyncMap<String, ValueCodecsTest.Counted> otherMap = new ZKAsyncMap<>(vertx, curator, null, "resolved",
+      new ValueCodecs(Collections.emptyList(), new ClassIdRegistry(curator)), ZKMapOptions.DEFAULT);
+    assertEquals(new ValueCodecsTest.Counted(1), this.<ValueCodecsTest.Counted>await(h -> otherMap.get("key", h)));
+    assertEquals(new ValueCodecsTest.Counted(1),
+      this.<VersionedValue<ValueCodecsTest.Counted>>await(h -> otherMap.getWithVersion("key", h)).getValue());
+  }
+
+  @Test
+  public void versionedOperations() throws Exception {
+    ZKAsyncMap<String, Integer> map = asyncMap("versioned", new JsonObject());
+    VersionedValue<Integer> absent = this.await(h -> map.getWithVersion("key", h));
+    assertNull(absent.getValue());
+    assertEquals(VersionedValue.ABSENT, absent.getVersion());
+    assertTrue(this.<Boolean>await(h -> map.putIfVersion("key", 1, VersionedValue.ABSENT, h)));
+    assertFalse(this.<Boolean>await(h -> map.putIfVersion("key", 2, VersionedValue.ABSENT, h)));
+
+    VersionedValue<Integer> first = this.await(h -> map.getWithVersion("key", h));
+    assertEquals(Integer.valueOf(1), first.getValue());
+    assertTrue(this.<Boolean>await(h -> map.putIfVersion("key", 2, first.getVersion(), h)));
+    assertFalse(this.<Boolean>await(h -> map.putIfVersion("key", 3, first.getVersion(), h)));
+    assertEquals(Integer.valueOf(2), this.<Integer>await(h -> map.get("key", h)));
+
+    assertEquals(Integer.valueOf(12), this.<Integer>await(h -> map.compute("key", (k, v) -> v + 10, h)));
+    assertEquals(Integer.valueOf(5), this.<Integer>await(h -> map.merge("other", 5, Integer::sum, h)));
+    assertEquals(Integer.valueOf(10), this.<Integer>await(h -> map.merge("other", 5, Integer::sum, h)));
+    assertNull(this.<Integer>await(h -> map.compute("other", (k, v) -> null, h)));
+    assertNull(this.<Integer>await(h -> map.get("other", h)));
+  }
+
+  @Test
+  public void putIfVersionUsesTheKnownVersion() throws Exception {
+    ZKAsyncMap<String, String> map = asyncMap("versioned-near", new JsonObject().put("consistency", "cached")
+      .put("cacheData", false).put("valueCacheSize", 10));
+    long deadline = System.currentTimeMillis() + 60000;
+    this.<Void>await(h -> map.put("key", "value", 60000, h));
+    assertEquals(1, awaitSize(map, 1));
+    VersionedValue<String> read = this.await(h -> map.getWithVersion("key", h));
+    assertEquals(0, map.nearCacheStats().getHits());
+    //the value read at that version is in the near cache, the ttl is kept without reading it again.
+    assertTrue(this.<Boolean>await(h -> map.putIfVersion("key", "updated", read.getVersion(), h)));
+    assertEquals(1, map.nearCacheStats().getHits());
+    assertTrue(storedDeadline("/asyncMap/versioned-near/key") >= deadline);
+  }
+
+  @Test
+  public void concurrentCompute() throws Exception {
+    ZKAsyncMap<String, Integer> map = asyncMap("compute", new JsonObject());
+    CountDownLatch latch = new CountDownLatch(5);
+    for (int i = 0; i < 5; i++) {
+      vertx.runOnContext(v -> map.merge("counter", 1, Integer::sum, ar -> latch.countDown()));
+    }
+    assertTrue(latch.await(timing.forWaiting().seconds(), TimeUnit.SECONDS));
+    assertEquals(Integer.valueOf(5), this.<Integer>await(h -> map.get("counter", h)));
+  }
+
+  @Test
+  public void bucketedLayout() throws Exception {
+    ZKAsyncMap<String, Integer> map = asyncMap("bucketed", new JsonObject().put("buckets", 8).put("consistency", "cached"));
+    Map<String, Integer> entries = new LinkedHashMap<>();
+    for (int i = 0; i < 50; i++) {
+      entries.put("key-" + i, i);
+    }
+    this.<Map<String, AsyncResult<Void>>>await(h -> map.putAll(entries, h));
+    this.<Void>await(h -> map.put("single", 100, h));
+    assertEquals(8, curator.getChildren().forPath("/asyncMap/bucketed").size());
+    assertEquals(51, awaitSize(map, 51));
+    assertEquals(100, (int) awaitValue(map, "single"));
+
+    assertEquals(100, (int) this.<Integer>await(h -> map.remove("single", h)));
+    assertEquals(50, awaitSize(map, 50));
+
+    this.<Void>await(map::clear);
+    assertEquals(0, awaitSize(map, 0));
+    //the buckets stay watched by their caches after a clear.
+    this.<Void>await(h -> map.put("key-1", 1, h));
+    assertEquals(1, (int) awaitValue(map, "key-1"));
+  }
+
+  @Test
+  public void sizeAtEveryConsistencyLevel() throws Exception {
+    for (String consistency : Arrays.asList("linearizable", "session-sequential", "cached")) {
+      ZKAsyncMap<String, String> map = asyncMap("size-" + consistency, new JsonObject().put("consistency", consistency));
+      assertEquals(0, awaitSize(map, 0));
+      for (int i = 0; i < 3; i++) {
+        String k = "key-" + i;
+        this.<Void>await(h -> map.put(k, "value", h));
+      }
+      assertEquals(3, awaitSize(map, 3));
+    }
+  }
+
+  @Test
+  public void cacheWithoutData() throws Exception {
+    for (int valueCacheSize : new int[]{0, 10}) {
+      ZKAsyncMap<String, String> map = asyncMap("dataless-" + valueCacheSize, new JsonObject()
+        .put("consistency", "cached").put("cacheData", false).put("valueCacheSize", valueCacheSize));
+      readAndWrite(map);
+      this.<Void>await(h -> map.put("key", "first", h));
+      assertEquals("first", awaitValue(map, "key"));
+      this.<Void>await(h -> map.put("key", "updated", h));
+      long deadline = System.currentTimeMillis() + timing.forWaiting().milliseconds();
+      String value = this.await(h -> map.get("key", h));
+      while (!"updated".equals(value) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+        value = this.await(h -> map.get("key", h));
+      }
+      assertEquals("updated", value);
+      assertEquals("updated", this.<String>await(h -> map.putIfAbsent("key", "other", h)));
+    }
+  }
+
+  @Test
+  public void nearCache() throws Exception {
+    ZKAsyncMap<String, String> map = asyncMap("near", new JsonObject().put("consistency", "cached")
+      .put("cacheData", false).put("valueCacheSize", 2).put("valueCacheEviction", "lfu"));
+    for (String k : Arrays.asList("a", "b", "c")) {
+      this.<Void>await(h -> map.put(k, k, h));
+    }
+    assertEquals(3, awaitSize(map, 3));
+
+    assertEquals("a", this.<String>await(h -> map.get("a", h)));
+    assertEquals("a", this.<String>await(h -> map.get("a", h)));
+    assertEquals("b", this.<String>await(h -> map.get("b", h)));
+    //b is the least frequently read value.
+    assertEquals("c", this.<String>await(h -> map.get("c", h)));
+    assertEquals("a", this.<String>await(h -> map.get("a", h)));
+    NearCacheStats stats = map.nearCacheStats();
+    assertEquals(2, stats.getHits());
+    assertEquals(3, stats.getMisses());
+    assertEquals(1, stats.getEvictions());
+
+    this.<Void>await(h -> map.put("a", "updated", h));
+    long deadline = System.currentTimeMillis() + timing.forWaiting().milliseconds();
+    while (map.nearCacheStats().getInvalidations() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, map.nearCacheStats().getInvalidations());
+    assertEquals("updated", this.<String>await(h -> map.get("a", h)));
+  }
+
+  @Test
+  public void nearCacheTtl() throws Exception {
+    ZKAsyncMap<String, String> map = asyncMap("near-ttl", new JsonObject().put("consistency", "cached")
+      .put("cacheData", false).put("valueCacheMaxBytes", 1024).put("valueCacheTtl", 100));
+    this.<Void>await(h -> map.put("a", "a", h));
+    assertEquals("a", awaitValue(map, "a"));
+    assertEquals("a", this.<String>await(h -> map.get("a", h)));
+    assertEquals(1, map.nearCacheStats().getHits());
+    Thread.sleep(200);
+    assertEquals("a", this.<String>await(h -> map.get("a", h)));
+    assertEquals(1, map.nearCacheStats().getEvictions());
+    assertEquals(2, map.nearCacheStats().getMisses());
+  }
+
+  @Test
+  public void nearCacheNeedsTheCachedConsistency() throws Exception {
+    ZKAsyncMap<String, String> map = asyncMap("near-linearizable", new JsonObject()
+      .put("cacheData", false).put("valueCacheSize", 10));
+    this.<Void>await(h -> map.put("a", "a", h));
+    assertEquals("a", this.<String>await(h -> map.get("a", h)));
+    assertEquals("a", this.<String>await(h -> map.get("a", h)));
+    NearCacheStats stats = map.nearCacheStats();
+    assertEquals(0, stats.getHits());
+    assertEquals(0, stats.getMisses());
+  }
+
+  @Test
+  public void sharedInstances() throws Exception {
+    MapRegistry<ZKAsyncMap<?, ?>> registry = new MapRegistry<>();
+    ZKAsyncMap<?, ?> first = registry.acquire("shared", name -> asyncMap(name, new JsonObject()));
+    ZKAsyncMap<?, ?> second = registry.acquire("shared", name -> asyncMap(name, new JsonObject()));
+    assertSame(first, second);
+
+    first.close();
+    assertSame(first, registry.acquire("shared", name -> asyncMap(name, new JsonObject())));
+    first.close();
+    second.close();
+    //a map closed once too often does not release the next instance.
+    second.close();
+    ZKAsyncMap<?, ?> third = registry.acquire("shared", name -> asyncMap(name, new JsonObject()));
+    assertNotSame(first, third);
+    first.close();
+    assertSame(third, registry.acquire("shared", name -> asyncMap(name, new JsonObject())));
+  }
+
+  @Test
+  public void sharedInstancesCreatedOutsideTheRegistry() throws Exception {
+    MapRegistry<ZKAsyncMap<?, ?>> registry = new MapRegistry<>();
+    //a factory can use the registry, e.g. for another map of the same bin.
+    ZKAsyncMap<?, ?> outer = registry.acquire("outer", name -> {
+      registry.acquire("inner", inner -> asyncMap(inner, new JsonObject()));
+      return asyncMap(name, new JsonObject());
+    });
+    assertSame(outer, registry.acquire("outer", name -> asyncMap(name, new JsonObject())));
+
+    //concurrent callers of a new name all get the instance that was registered first.
+    int callers = 4;
+    CountDownLatch created = new CountDownLatch(callers);
+    ExecutorService executor = Executors.newFixedThreadPool(callers);
+    List<CompletableFuture<ZKAsyncMap<?, ?>>> acquired = new ArrayList<>();
+    for (int i = 0; i < callers; i++) {
+      acquired.add(CompletableFuture.supplyAsync(() -> registry.acquire("raced", name -> {
+        ZKAsyncMap<?, ?> map = asyncMap(name, new JsonObject());
+        created.countDown();
+        try {
+          created.await(timing.forWaiting().seconds(), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return map;
+      }), executor));
+    }
+    ZKAsyncMap<?, ?> winner = acquired.get(0).get(timing.forWaiting().seconds(), TimeUnit.SECONDS);
+    for (CompletableFuture<ZKAsyncMap<?, ?>> future : acquired) {
+      assertSame(winner, future.get(timing.forWaiting().seconds(), TimeUnit.SECONDS));
+    }
+    executor.shutdown();
+    for (int i = 0; i < callers; i++) {
+      winner.close();
+    }
+    assertNotSame(winner, registry.acquire("raced", name -> asyncMap(name, new JsonObject())));
+  }
+
+  @Test
+  public void expiredValuesAreAbsent() throws Exception {
+    ZKAsyncMap<String, String> map = asyncMap("expiring", new JsonObject());
+    this.<Void>await(h -> map.put("put", "value", 200, h));
+    assertNull(this.<String>await(h -> map.putIfAbsent("putIfAbsent", "value", 200, h)));
+    assertEquals("value", this.<String>await(h -> map.replace("put", "replaced", h)));
+    assertEquals("replaced", this.<String>await(h -> map.get("put", h)));
+    Thread.sleep(300);
+
+    //there is no ttl monitor, the nodes are still there.
+    assertEquals(2, awaitSize(map, 2));
+    assertNull(this.<String>await(h -> map.get("put", h)));
+    assertNull(this.<String>await(h -> map.get("putIfAbsent", h)));
+    assertNull(this.<String>await(h -> map.putIfAbsent("putIfAbsent", "again", h)));
+    assertEquals("again", this.<String>await(h -> map.get("putIfAbsent", h)));
+  }
+
+  @Test
+  public void updatesKeepTheTtl() throws Exception {
+    for (boolean cacheData : new boolean[]{true, false}) {
+      String name = "keptTtl-" + cacheData;
+      ZKAsyncMap<String, Integer> map = asyncMap(name, new JsonObject().put("cacheData", cacheData));
+      Map<String, Long> deadlines = new LinkedHashMap<>();
+      for (String k : Arrays.asList("putIfVersion", "compute", "merge")) {
+        this.<Void>await(h -> map.put(k, 1, 60_000, h));
+        deadlines.put(k, storedDeadline("/asyncMap/" + name + "/" + k));
+        assertNotEquals(ValueCodecs.NO_DEADLINE, (long) deadlines.get(k));
+      }
+
+      int version = this.<VersionedValue<Integer>>await(h -> map.getWithVersion("putIfVersion", h)).getVersion();
+      assertTrue(this.<Boolean>await(h -> map.putIfVersion("putIfVersion", 2, version, h)));
+      assertEquals(2, (int) this.<Integer>await(h -> map.compute("compute", (k, v) -> v + 1, h)));
+      assertEquals(2, (int) this.<Integer>await(h -> map.merge("merge", 1, Integer::sum, h)));
+      for (String k : Arrays.asList("putIfVersion", "compute", "merge")) {
+        assertEquals(2, (int) this.<Integer>await(h -> map.get(k, h)));
+        assertEquals(k, (long) deadlines.get(k), storedDeadline("/asyncMap/" + name + "/" + k));
+      }
+
+      //an absent key has no ttl to keep.
+      assertEquals(1, (int) this.<Integer>await(h -> map.compute("absent", (k, v) -> 1, h)));
+      assertEquals(ValueCodecs.NO_DEADLINE, storedDeadline("/asyncMap/" + name + "/absent"));
+    }
+  }
+
+  private long storedDeadline(String path) throws Exception {
+    return ValueCodecs.deadlineOf(curator.getData().forPath(path));
+  }
+
+  @Test
+  public void recordedKeysAreSweptByTheLeader() throws Exception {
+    ValueCodecs codecs = ValueCodecs.DEFAULT;
+    for (String path : Arrays.asList("/asyncMap/swept/expired", "/asyncMap/swept/bucket/expired", "/asyncMap/swept/kept",
+      "/asyncMap/swept/removed")) {
+      curator.create().creatingParentsIfNeeded().forPath(AsyncMapTTLMonitor.indexPath(path));
+    }
+    curator.create().creatingParentsIfNeeded().forPath("/asyncMap/swept/expired", codecs.encode("value", 1L));
+    curator.create().creatingParentsIfNeeded().forPath("/asyncMap/swept/bucket/expired", codecs.encode("value", 1L));
+    curator.create().creatingParentsIfNeeded().forPath("/asyncMap/swept/kept", codecs.encode("value"));
+    //the keys without a record are not swept, the maps are never scanned.
+    curator.create().creatingParentsIfNeeded().forPath("/asyncMap/swept/unrecorded", codecs.encode("value", 1L));
+    AsyncMapTTLMonitor monitor = new AsyncMapTTLMonitor(vertx, curator);
+    try {
+      long deadline = System.currentTimeMillis() + timing.forWaiting().milliseconds();
+      while (curator.getChildren().forPath("/ttl/keys").stream().anyMatch(index -> {
+        try {
+          return !curator.getChildren().forPath("/ttl/keys/" + index).isEmpty();
+        } catch (Exception e) {
+          return true;
+        }
+      }) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertNull(curator.checkExists().forPath("/asyncMap/swept/expired"));
+      assertNull(curator.checkExists().forPath("/asyncMap/swept/bucket/expired"));
+      assertNotNull(curator.checkExists().forPath("/asyncMap/swept/kept"));
+      assertNotNull(curator.checkExists().forPath("/asyncMap/swept/unrecorded"));
+      //the records of the keys removed or without ttl are removed as well.
+      for (String path : Arrays.asList("/asyncMap/swept/expired", "/asyncMap/swept/bucket/expired", "/asyncMap/swept/kept",
+        "/asyncMap/swept/removed")) {
+        assertNull(path, curator.checkExists().forPath(AsyncMapTTLMonitor.indexPath(path)));
+      }
+    } finally {
+      monitor.stop();
+    }
+  }
+
+  @Test
+  public void ttlMessages() throws Exception {
+    Map<String, Long> batch = new LinkedHashMap<>();
+    batch.put("/asyncMap/foo/key", 1234L);
+    batch.put("/asyncMap/foo/other", Long.MAX_VALUE - 1);
+    assertEquals(2 * (4 + 8) + "/asyncMap/foo/key".length() + "/asyncMap/foo/other".length(),
+      AsyncMapTTLMonitor.encode(batch).length());
+    assertEquals(batch, AsyncMapTTLMonitor.decode(AsyncMapTTLMonitor.encode(batch)));
+  }
+
+  @Test
+  public void ttlMonitorPerVertxInstance() throws Exception {
+    Vertx otherVertx = Vertx.vertx();
+    AsyncMapTTLMonitor monitor = new AsyncMapTTLMonitor(vertx, curator);
+    AsyncMapTTLMonitor otherMonitor = new AsyncMapTTLMonitor(otherVertx, curator);
+    try {
+      //stopping the monitor of an instance leaves the other one running, and expiring the keys of its instance.
+      monitor.stop();
+      ZKAsyncMap<String, String> map = new ZKAsyncMap<>(otherVertx, curator, otherMonitor, "perInstance");
+      this.<Void>await(h -> map.put("key", "value", 100, h));
+      assertTrue(awaitRemoved("/asyncMap/perInstance/key"));
+      //the key leaves the index of the keys with a ttl once expired.
+      assertTrue(awaitRemoved(AsyncMapTTLMonitor.indexPath("/asyncMap/perInstance/key")));
+      map.close();
+    } finally {
+      otherMonitor.stop();
+      CompletableFuture<Void> closed = new CompletableFuture<>();
+      otherVertx.close(ar -> closed.complete(null));
+      closed.get(timing.forWaiting().seconds(), TimeUnit.SECONDS);
+    }
+  }
+
+  private void readAndWrite(ZKAsyncMap<String, String> map) throws Exception {
+    assertNull(this.<String>await(h -> map.get("foo", h)));
+    this.<Void>await(h -> map.put("foo", "bar", h));
+    assertEquals("bar", awaitValue(map, "foo"));
+    assertEquals("bar", this.<String>await(h -> map.remove("foo", h)));
+  }
+
+  @Test
+  public void containerNodesFallBackWithAnOlderZookeeper() throws Exception {
+    assertFalse(ZKMapOptions.DEFAULT.isContainerNodes());
+    ZKAsyncMultiMap<String, String> multiMap = new ZKAsyncMultiMap<>(vertx, curator, "containers", ValueCodecs.DEFAULT,
+      new ZKMapOptions(new JsonObject().put("containerNodes", true)));
+    try {
+      this.<Void>await(h -> multiMap.add("key", "value", h));
+      assertNotNull(curator.checkExists().forPath("/asyncMultiMap/containers/key"));
+      assertTrue(this.<Boolean>await(h -> multiMap.remove("key", "value", h)));
+      //the client and the test server are 3.4, the multimap removes the empty key itself.
+      assertNull(curator.checkExists().forPath("/asyncMultiMap/containers/key"));
+    } finally {
+      multiMap.close();
+    }
+  }
+
+  /**
+   * Reads the key until the cache of the map has caught up with the write.
+   */
+  private <V> V awaitValue(ZKAsyncMap<String, V> map, String k) throws Exception {
+    long deadline = System.currentTimeMillis() + timing.forWaiting().milliseconds();
+    V value = this.<V>await(h -> map.get(k, h));
+    while (value == null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      value = this.<V>await(h -> map.get(k, h));
+    }
+    return value;
+  }
+
+  /**
+   * Waits until the node is removed, e.g. by the expirer.
+   */
+  private boolean awaitRemoved(String path) throws Exception {
+    long deadline = System.currentTimeMillis() + timing.forWaiting().milliseconds();
+    while (curator.checkExists().forPath(path) != null && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    return curator.checkExists().forPath(path) == null;
+  }
+
+  /**
+   * Reads the size until the cache of the map has caught up with the writes.
+   */
+  private int awaitSize(ZKAsyncMap<?, ?> map, int expected) throws Exception {
+    long deadline = System.currentTimeMillis() + timing.forWaiting().milliseconds();
+    int size = this.<Integer>await(map::size);
+    while (size != expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      size = this.<Integer>await(map::size);
+    }
+    return size;
+  }
+}